@@ -0,0 +1,251 @@
+package com.joshdholtz.sentry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the store endpoint, /api/{project}/store/.
+ *
+ * It checks the X-Sentry-Auth header against the expected keys, decodes
+ * compressed bodies and records every event it accepts by event_id. Faults
+ * are injected per request: added latency, a 503, a 429 with Retry-After,
+ * or a connection closed without any response.
+ */
+final class FakeSentryServer {
+
+	private static final Pattern AUTH = Pattern.compile(
+			"Sentry sentry_version=(\\d+),sentry_client=[^,]+,sentry_timestamp=(\\d+),sentry_key=([^,]+),sentry_secret=([^,]+)");
+
+	/**
+	 * How often each fault is injected, as fractions of requests.
+	 */
+	static final class Faults {
+		long latencyMillis;
+		double serverErrorRate;
+		double rateLimitRate;
+		long retryAfterSeconds = 1;
+		double dropRate;
+	}
+
+	/**
+	 * Called for every event accepted.
+	 */
+	interface Listener {
+		void onEvent(JSONObject event, long receivedAtNanos);
+	}
+
+	private final String projectId;
+	private final String publicKey;
+	private final String secretKey;
+	private final Faults faults;
+	private final Listener listener;
+	private final Random random = new Random();
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final ConcurrentHashMap<String, AtomicLong> receipts = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong unauthorized = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	FakeSentryServer(String projectId, String publicKey, String secretKey, Faults faults, Listener listener) throws IOException {
+		this.projectId = projectId;
+		this.publicKey = publicKey;
+		this.secretKey = secretKey;
+		this.faults = faults;
+		this.listener = listener;
+		// without it the server's small writes wait out the client's delayed ACK,
+		// adding some 40 ms to every request that a real server would not
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/api/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					FakeSentryServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	void start() {
+		server.start();
+	}
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	String baseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		if (faults.latencyMillis > 0) {
+			try {
+				Thread.sleep(faults.latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		double roll;
+		synchronized (random) {
+			roll = random.nextDouble();
+		}
+		if (roll < faults.dropRate) {
+			// closed by the caller without a status line, as a dead connection would be
+			dropped.incrementAndGet();
+			return;
+		}
+		roll -= faults.dropRate;
+		if (roll < faults.serverErrorRate) {
+			respond(exchange, 503, null);
+			return;
+		}
+		roll -= faults.serverErrorRate;
+		if (roll < faults.rateLimitRate) {
+			exchange.getResponseHeaders().add("Retry-After", String.valueOf(faults.retryAfterSeconds));
+			respond(exchange, 429, null);
+			return;
+		}
+
+		if (!"POST".equals(exchange.getRequestMethod())
+				|| !exchange.getRequestURI().getPath().equals("/api/" + projectId + "/store/")) {
+			respond(exchange, 404, null);
+			return;
+		}
+		if (!authorized(exchange.getRequestHeaders().getFirst("X-Sentry-Auth"))) {
+			unauthorized.incrementAndGet();
+			respond(exchange, 401, null);
+			return;
+		}
+
+		byte[] body = read(exchange);
+		bytesReceived.addAndGet(body.length);
+		JSONObject event;
+		try {
+			event = new JSONObject(new String(decode(body, exchange.getRequestHeaders().getFirst("Content-Encoding")), "UTF-8"));
+		} catch (JSONException e) {
+			respond(exchange, 400, null);
+			return;
+		}
+		long receivedAt = System.nanoTime();
+		String eventId = event.optString("event_id");
+		count(receipts, eventId);
+		if (listener != null) {
+			listener.onEvent(event, receivedAt);
+		}
+		respond(exchange, 200, "{\"id\":\"" + eventId + "\"}");
+	}
+
+	private boolean authorized(String header) {
+		if (header == null) {
+			return false;
+		}
+		Matcher matcher = AUTH.matcher(header);
+		return matcher.matches() && "4".equals(matcher.group(1))
+				&& publicKey.equals(matcher.group(3)) && secretKey.equals(matcher.group(4));
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		count(statuses, status);
+		byte[] bytes = body == null ? new byte[0] : body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		if (bytes.length > 0) {
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	private static byte[] read(HttpExchange exchange) throws IOException {
+		return copy(exchange.getRequestBody());
+	}
+
+	private static byte[] decode(byte[] body, String encoding) throws IOException {
+		if ("gzip".equals(encoding)) {
+			return copy(new GZIPInputStream(new ByteArrayInputStream(body)));
+		} else if ("deflate".equals(encoding)) {
+			return copy(new InflaterInputStream(new ByteArrayInputStream(body)));
+		}
+		return body;
+	}
+
+	private static byte[] copy(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static <K> void count(ConcurrentHashMap<K, AtomicLong> counters, K key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * @return how many times each accepted event_id arrived
+	 */
+	Map<String, AtomicLong> receipts() {
+		return receipts;
+	}
+
+	Map<Integer, Long> statuses() {
+		TreeMap<Integer, Long> copy = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().get());
+		}
+		return copy;
+	}
+
+	long droppedConnections() {
+		return dropped.get();
+	}
+
+	long unauthorizedRequests() {
+		return unauthorized.get();
+	}
+
+	long bytesReceived() {
+		return bytesReceived.get();
+	}
+}
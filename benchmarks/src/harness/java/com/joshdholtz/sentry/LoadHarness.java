@@ -0,0 +1,217 @@
+package com.joshdholtz.sentry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Drives the whole capture, store and send path against a
+ * {@link FakeSentryServer} and reports what arrived.
+ *
+ * Every event carries a unique message, so the server side can tell
+ * delivered, lost and duplicated events apart and time each one from
+ * capture to arrival. Settings are read from system properties:
+ *
+ * <pre>
+ * harness.threads          capturing threads (8)
+ * harness.rate             events per second, all threads together (500)
+ * harness.seconds          how long to capture (10)
+ * harness.drainSeconds     how long to wait for stragglers afterwards (30)
+ * harness.latencyMillis    latency added to every response (0)
+ * harness.serverErrorRate  fraction of requests answered with 503 (0)
+ * harness.rateLimitRate    fraction of requests answered with 429 (0)
+ * harness.dropRate         fraction of connections closed without a response (0)
+ * </pre>
+ */
+public final class LoadHarness {
+
+	private static final String PROJECT = "1";
+	private static final String PUBLIC_KEY = "public";
+	private static final String SECRET_KEY = "secret";
+
+	private final ConcurrentHashMap<String, Long> capturedAt = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<String, AtomicLong> arrivals = new ConcurrentHashMap<String, AtomicLong>();
+	private final List<Long> latenciesMicros = new ArrayList<Long>();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile long peakQueueBytes;
+
+	public static void main(String[] args) throws Exception {
+		new LoadHarness().run();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		int threads = Integer.getInteger("harness.threads", 8);
+		double rate = Double.parseDouble(System.getProperty("harness.rate", "500"));
+		long seconds = Long.getLong("harness.seconds", 10);
+		long drainSeconds = Long.getLong("harness.drainSeconds", 30);
+
+		FakeSentryServer.Faults faults = new FakeSentryServer.Faults();
+		faults.latencyMillis = Long.getLong("harness.latencyMillis", 0);
+		faults.serverErrorRate = Double.parseDouble(System.getProperty("harness.serverErrorRate", "0"));
+		faults.rateLimitRate = Double.parseDouble(System.getProperty("harness.rateLimitRate", "0"));
+		faults.dropRate = Double.parseDouble(System.getProperty("harness.dropRate", "0"));
+
+		FakeSentryServer server = new FakeSentryServer(PROJECT, PUBLIC_KEY, SECRET_KEY, faults, new FakeSentryServer.Listener() {
+			@Override
+			public void onEvent(JSONObject event, long receivedAtNanos) {
+				arrived(event.optString("message"), receivedAtNanos);
+			}
+		});
+		server.start();
+
+		File root = Files.createTempDirectory("sentry-harness").toFile();
+		Sentry.setStartupDelay(0);
+		Sentry.init(new Context(root, "com.example.harness"), server.baseUrl(),
+				"http://" + PUBLIC_KEY + ":" + SECRET_KEY + "@127.0.0.1/" + PROJECT, new HashMap<String, String>());
+		Sentry.setRetryPolicy(200, 2000, 20);
+
+		Thread sampler = startQueueSampler();
+		long start = System.nanoTime();
+		capture(threads, rate, seconds);
+		long captureNanos = System.nanoTime() - start;
+
+		long deadline = System.nanoTime() + drainSeconds * 1000000000L;
+		while (arrivals.size() < sequence.get() && System.nanoTime() < deadline) {
+			Thread.sleep(100);
+		}
+		sampler.interrupt();
+		server.stop();
+
+		report(captureNanos, server, root);
+	}
+
+	private void capture(int threads, double rate, final long seconds) throws InterruptedException {
+		final long intervalNanos = (long) (1000000000L * threads / rate);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long end = System.nanoTime() + seconds * 1000000000L;
+					long next = System.nanoTime();
+					while (next < end) {
+						String message = "load " + sequence.incrementAndGet();
+						capturedAt.put(message, System.nanoTime());
+						Sentry.captureMessage(message, SentryEventLevel.ERROR);
+						next += intervalNanos;
+						LockSupport.parkNanos(next - System.nanoTime());
+					}
+					done.countDown();
+				}
+			}, "Harness-" + i);
+			thread.start();
+		}
+		done.await();
+	}
+
+	private void arrived(String message, long receivedAtNanos) {
+		AtomicLong count = arrivals.get(message);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = arrivals.putIfAbsent(message, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		if (count.incrementAndGet() == 1) {
+			Long captured = capturedAt.get(message);
+			if (captured != null) {
+				synchronized (latenciesMicros) {
+					latenciesMicros.add((receivedAtNanos - captured) / 1000);
+				}
+			}
+		}
+	}
+
+	private Thread startQueueSampler() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					peakQueueBytes = Math.max(peakQueueBytes, Sentry.getStats().getQueueBytes());
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "Harness-Sampler");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void report(long captureNanos, FakeSentryServer server, File root) throws IOException {
+		long captured = sequence.get();
+		long delivered = 0;
+		long duplicates = 0;
+		for (Map.Entry<String, AtomicLong> entry : arrivals.entrySet()) {
+			if (capturedAt.containsKey(entry.getKey())) {
+				delivered++;
+				duplicates += entry.getValue().get() - 1;
+			}
+		}
+
+		long[] latencies;
+		synchronized (latenciesMicros) {
+			latencies = new long[latenciesMicros.size()];
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = latenciesMicros.get(i);
+			}
+		}
+		Arrays.sort(latencies);
+
+		SentryStats.Snapshot stats = Sentry.getStats();
+		System.out.println("captured     " + captured + " in " + captureNanos / 1000000 + " ms ("
+				+ Math.round(captured * 1e9 / captureNanos) + "/s)");
+		System.out.println("delivered    " + delivered);
+		System.out.println("lost         " + (captured - delivered));
+		System.out.println("duplicated   " + duplicates);
+		System.out.println("latency ms   p50=" + percentile(latencies, 0.5) + " p90=" + percentile(latencies, 0.9)
+				+ " p99=" + percentile(latencies, 0.99) + " max=" + percentile(latencies, 1.0));
+		System.out.println("server       statuses=" + server.statuses() + " dropped=" + server.droppedConnections()
+				+ " unauthorized=" + server.unauthorizedRequests() + " bytes=" + server.bytesReceived());
+		System.out.println("disk         persisted=" + stats.getPersisted() + " evicted=" + stats.getEvicted()
+				+ " peakQueueBytes=" + peakQueueBytes + " onDisk=" + size(root) + " write[" + stats.getStorageWriteMicros() + "]");
+		System.out.println("client       " + stats);
+	}
+
+	private static String percentile(long[] sortedMicros, double percentile) {
+		if (sortedMicros.length == 0) {
+			return "-";
+		}
+		int index = (int) Math.min(sortedMicros.length - 1, Math.ceil(percentile * sortedMicros.length) - 1);
+		return String.format("%.1f", sortedMicros[Math.max(0, index)] / 1000.0);
+	}
+
+	private static long size(File file) {
+		if (file.isFile()) {
+			return file.length();
+		}
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				size += size(child);
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,53 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Cost of turning a Throwable into a builder, at several stack depths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventBuilderBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int depth;
+
+	private Throwable throwable;
+
+	@Setup
+	public void setUp() throws IOException {
+		BenchmarkSupport.init();
+		throwable = BenchmarkSupport.throwable(depth);
+	}
+
+	@Benchmark
+	public SentryEventBuilder builderFromThrowable() {
+		return new SentryEventBuilder(throwable, SentryEventLevel.ERROR);
+	}
+
+	@Benchmark
+	public SentryEventBuilder setException() {
+		return new SentryEventBuilder().setException(throwable);
+	}
+
+	@Benchmark
+	public JSONObject getStackTrace() throws JSONException {
+		return SentryEventBuilder.getStackTrace(throwable);
+	}
+}
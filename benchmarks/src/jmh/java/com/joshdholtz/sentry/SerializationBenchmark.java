@@ -0,0 +1,68 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Cost of serializing a built exception event: the old JSONObject copy
+ * against the streaming writer, and a full SentryEventRequest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int depth;
+
+	private SentryEventBuilder builder;
+	// the same event with its pre-serialized fragments expanded, which JSONObject would otherwise turn into {}
+	private Map<String, Object> expanded;
+
+	@Setup
+	public void setUp() throws IOException {
+		BenchmarkSupport.init();
+		HashMap<String, String> tags = new HashMap<String, String>();
+		tags.put("version", "1.0");
+		builder = new SentryEventBuilder(BenchmarkSupport.throwable(depth), SentryEventLevel.ERROR).setTags(tags);
+		builder.prepare();
+
+		expanded = new HashMap<String, Object>(builder.event);
+		for (Map.Entry<String, Object> entry : expanded.entrySet()) {
+			if (entry.getValue() instanceof SentryJsonFragment) {
+				entry.setValue(((SentryJsonFragment) entry.getValue()).toJSONObject());
+			}
+		}
+	}
+
+	@Benchmark
+	public String jsonObject() {
+		return new JSONObject(expanded).toString();
+	}
+
+	@Benchmark
+	public String streamingWriter() {
+		return SentryEventWriter.write(builder.event);
+	}
+
+	@Benchmark
+	public SentryEventRequest eventRequest() {
+		return new SentryEventRequest(builder);
+	}
+}
@@ -0,0 +1,55 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.joshdholtz.sentry.Sentry.InternalStorage;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Cost of persisting and acknowledging one event with a backlog of queued
+ * events already in storage. Each fork starts from an empty directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class StorageBenchmark {
+
+	@Param({ "0", "100", "1000", "10000" })
+	public int backlog;
+
+	private InternalStorage storage;
+	private SentryEventRequest request;
+
+	@Setup
+	public void setUp() throws IOException {
+		BenchmarkSupport.init();
+		storage = InternalStorage.getInstance();
+
+		String data = new SentryEventRequest(new SentryEventBuilder(BenchmarkSupport.throwable(50), SentryEventLevel.ERROR)).getRequestData();
+		for (int i = 0; i < backlog; i++) {
+			storage.addRequest(new SentryEventRequest(UUID.randomUUID(), data));
+		}
+		request = new SentryEventRequest(UUID.randomUUID(), data);
+	}
+
+	@Benchmark
+	public void addAndRemove() {
+		storage.addRequest(request);
+		storage.removeBuilder(request);
+	}
+}
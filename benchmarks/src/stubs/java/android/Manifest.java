@@ -0,0 +1,8 @@
+package android;
+
+public final class Manifest {
+
+	public static final class permission {
+		public static final String ACCESS_NETWORK_STATE = "android.permission.ACCESS_NETWORK_STATE";
+	}
+}
@@ -0,0 +1,8 @@
+package android.app;
+
+public class ActivityManager {
+
+	public int getMemoryClass() {
+		return 64;
+	}
+}
@@ -0,0 +1,83 @@
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+
+import android.app.ActivityManager;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+
+/**
+ * JVM stand-in for the parts of Context the library uses, rooted in a directory.
+ */
+public class Context {
+
+	public static final String CONNECTIVITY_SERVICE = "connectivity";
+	public static final String ACTIVITY_SERVICE = "activity";
+	public static final int MODE_PRIVATE = 0;
+
+	private final File root;
+	private final String packageName;
+	private final HashMap<String, SharedPreferences> preferences = new HashMap<String, SharedPreferences>();
+
+	public Context(File root, String packageName) {
+		this.root = root;
+		this.packageName = packageName;
+		new File(root, "files").mkdirs();
+		new File(root, "cache").mkdirs();
+	}
+
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	public String getPackageName() {
+		return packageName;
+	}
+
+	public File getFilesDir() {
+		return new File(root, "files");
+	}
+
+	public File getCacheDir() {
+		return new File(root, "cache");
+	}
+
+	public File getFileStreamPath(String name) {
+		return new File(getFilesDir(), name);
+	}
+
+	public FileInputStream openFileInput(String name) throws FileNotFoundException {
+		return new FileInputStream(getFileStreamPath(name));
+	}
+
+	public boolean deleteFile(String name) {
+		return getFileStreamPath(name).delete();
+	}
+
+	public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+		SharedPreferences prefs = preferences.get(name);
+		if (prefs == null) {
+			prefs = new SharedPreferences();
+			preferences.put(name, prefs);
+		}
+		return prefs;
+	}
+
+	public PackageManager getPackageManager() {
+		return new PackageManager();
+	}
+
+	public Object getSystemService(String name) {
+		if (CONNECTIVITY_SERVICE.equals(name)) {
+			return new ConnectivityManager();
+		}
+		return ACTIVITY_SERVICE.equals(name) ? new ActivityManager() : null;
+	}
+
+	public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+		return null;
+	}
+}
@@ -0,0 +1,16 @@
+package android.content;
+
+public class Intent {
+
+	public static final String ACTION_BATTERY_CHANGED = "android.intent.action.BATTERY_CHANGED";
+	public static final String ACTION_POWER_CONNECTED = "android.intent.action.ACTION_POWER_CONNECTED";
+	public static final String ACTION_POWER_DISCONNECTED = "android.intent.action.ACTION_POWER_DISCONNECTED";
+
+	public String getAction() {
+		return null;
+	}
+
+	public int getIntExtra(String name, int defaultValue) {
+		return defaultValue;
+	}
+}
@@ -0,0 +1,62 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for SharedPreferences.
+ */
+public class SharedPreferences {
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	public synchronized String getString(String key, String defValue) {
+		Object value = values.get(key);
+		return value instanceof String ? (String) value : defValue;
+	}
+
+	public synchronized long getLong(String key, long defValue) {
+		Object value = values.get(key);
+		return value instanceof Long ? (Long) value : defValue;
+	}
+
+	public synchronized boolean contains(String key) {
+		return values.containsKey(key);
+	}
+
+	public Editor edit() {
+		return new Editor();
+	}
+
+	public class Editor {
+		private final Map<String, Object> changes = new HashMap<String, Object>();
+
+		public Editor putString(String key, String value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor putLong(String key, long value) {
+			changes.put(key, value);
+			return this;
+		}
+
+		public Editor remove(String key) {
+			changes.put(key, null);
+			return this;
+		}
+
+		public boolean commit() {
+			synchronized (SharedPreferences.this) {
+				for (Map.Entry<String, Object> change : changes.entrySet()) {
+					if (change.getValue() == null) {
+						values.remove(change.getKey());
+					} else {
+						values.put(change.getKey(), change.getValue());
+					}
+				}
+			}
+			return true;
+		}
+	}
+}
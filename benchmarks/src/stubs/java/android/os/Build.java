@@ -0,0 +1,13 @@
+package android.os;
+
+public class Build {
+
+	public static final String DEVICE = "jvm";
+	public static final String MODEL = "jvm";
+	public static final String BRAND = "jvm";
+
+	public static class VERSION {
+		public static final int SDK_INT = 19;
+		public static final String RELEASE = "4.4";
+	}
+}
@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * Allocation counting is not available on the JVM; use the gc profiler instead.
+ */
+public class Debug {
+
+	public static void startAllocCounting() {
+
+	}
+
+	public static void stopAllocCounting() {
+
+	}
+
+	public static void resetThreadAllocCount() {
+
+	}
+
+	public static int getThreadAllocCount() {
+		return 0;
+	}
+
+	public static boolean isDebuggerConnected() {
+		return false;
+	}
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Runs posted tasks right away on the calling thread.
+ */
+public class Handler {
+
+	public Handler(Looper looper) {
+
+	}
+
+	public boolean post(Runnable task) {
+		task.run();
+		return true;
+	}
+}
@@ -0,0 +1,26 @@
+package android.os;
+
+/**
+ * The JVM has no main looper; the thread that first asks for it stands in.
+ */
+public class Looper {
+
+	private static Looper main;
+
+	private final Thread thread;
+
+	private Looper(Thread thread) {
+		this.thread = thread;
+	}
+
+	public static synchronized Looper getMainLooper() {
+		if (main == null) {
+			main = new Looper(Thread.currentThread());
+		}
+		return main;
+	}
+
+	public Thread getThread() {
+		return thread;
+	}
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+public class SystemClock {
+
+	public static long uptimeMillis() {
+		return System.nanoTime() / 1000000;
+	}
+}
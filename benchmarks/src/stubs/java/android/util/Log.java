@@ -0,0 +1,23 @@
+package android.util;
+
+/**
+ * Discards everything, so logging does not skew the measurements.
+ */
+public class Log {
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+}
@@ -3,16 +3,11 @@ package com.joshdholtz.sentry;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -21,10 +16,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
@@ -33,41 +34,188 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.Uri;
-import android.os.Build;
 import android.util.Log;
 
 import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
-import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.RequestBody;
-import com.squareup.okhttp.Response;
 
 public class Sentry {
 	
 	private final static String VERSION = "1.1";
 	
-	private Context context;
+	private volatile Context context;
 
 	private String baseUrl;
 	private String dsn;
 	private String packageName;
-	private Map<String, String> tags;
+	private volatile SentryDeviceContext deviceContext;
 	private SentryEventCaptureListener captureListener;
+	private volatile SentryEventFilter eventFilter;
+	private final List<SentryEventProcessor> processors = new CopyOnWriteArrayList<SentryEventProcessor>();
+	private volatile SentryScrubber scrubber = SentryScrubber.NONE;
 	
 	private OkHttpClient client = new OkHttpClient();
 	public static final MediaType json = MediaType.parse("application/json; charset=utf-8");
+	
+	private final SentryFrameClassifier classifier = new SentryFrameClassifier(SentryEventBuilder.getNotInAppFrames(), 512);
+	private final SentryAdmission admission = new SentryAdmission();
+	private final SentryStats stats = new SentryStats();
+	private volatile int frameBudget = DEFAULT_FRAME_BUDGET;
+	private final SentryBreadcrumbs breadcrumbs = new SentryBreadcrumbs(BREADCRUMB_CAPACITY);
+	private final SentryIngestQueue ingest = new SentryIngestQueue(
+		new SentryIngestQueue.Consumer() {
+			@Override
+			public void process(SentryEventBuilder builder) {
+				processCapturedEvent(builder);
+			}
+		},
+		new SentryIngestQueue.OverflowListener() {
+			@Override
+			public void onOverflow(SentryEventBuilder builder) {
+				admission.countOverflow();
+				stats.dropped.incrementAndGet();
+			}
+		});
+	
+	private volatile SentryOkHttpTransport okHttpTransport;
+	private volatile SentryTransport transport;
+	
+	private final SentryEventDispatcher dispatcher = new SentryEventDispatcher(
+		new SentryTransport() {
+			@Override
+			public SentryTransport.Response send(SentryEventRequest request) throws IOException {
+				long start = System.currentTimeMillis();
+				try {
+					SentryTransport.Response response = transport.send(request);
+					stats.recordResponse(response.code, System.currentTimeMillis() - start);
+					return response;
+				} catch (IOException e) {
+					stats.transportErrors.incrementAndGet();
+					throw e;
+				}
+			}
+		},
+		new SentryEventDispatcher.Acknowledger() {
+			@Override
+			public boolean onResponse(SentryEventRequest request, SentryTransport.Response response) {
+				if (response.code == 429 || response.code >= 500) {
+					long retryAfter = parseRetryAfter(response.retryAfter, response.code == 429 ? DEFAULT_RETRY_AFTER_MILLIS : 0);
+					if (retryAfter > 0) {
+						long until = System.currentTimeMillis() + retryAfter;
+						retries.backoffUntil(until);
+						dispatcher.pauseUntil(until);
+					}
+					retry(request, retryAfter);
+					backlog.settle(request, false);
+					// the server is shedding load, the rest of the batch would be turned away too
+					return false;
+				}
+				
+				// accepted, or rejected for good
+				retries.forget(request.getUuid());
+				InternalStorage.getInstance().removeBuilder(request);
+				backlog.settle(request, true);
+				return true;
+			}
+			
+			@Override
+			public void onFailed(SentryEventRequest request, IOException error) {
+				dispatcher.pauseUntil(System.currentTimeMillis() + retries.backoff(1));
+				retry(request, 0);
+				backlog.settle(request, false);
+			}
+			
+			@Override
+			public void onDeferred(SentryEventRequest request) {
+				dispatcher.enqueue(request);
+			}
+		});
+	private SentryRetryScheduler retries;
+	private volatile SentryCrashSlot crashSlot;
+	private volatile boolean storageLoaded;
+	
+	// kept here so they can be set before init and survive a re-init
+	private volatile SentryCompression compression = SentryCompression.NONE;
+	private volatile int compressionThreshold = 1024;
+	private volatile long retryBaseDelayMillis = SentryRetryScheduler.DEFAULT_BASE_DELAY_MILLIS;
+	private volatile long retryMaxDelayMillis = SentryRetryScheduler.DEFAULT_MAX_DELAY_MILLIS;
+	private volatile int retryMaxAttempts = SentryRetryScheduler.DEFAULT_MAX_ATTEMPTS;
+	
+	private volatile long startupDelayMillis = DEFAULT_STARTUP_DELAY_MILLIS;
+	private final SentryStartupTimings timings = new SentryStartupTimings();
+	
+	private volatile int maxQueuedEvents = DEFAULT_MAX_QUEUED_EVENTS;
+	private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	private volatile SentryEventWriter.Limits payloadLimits = new SentryEventWriter.Limits(
+			DEFAULT_MAX_EVENT_LENGTH, DEFAULT_MAX_STRING_LENGTH, DEFAULT_MAX_TAG_COUNT, DEFAULT_MAX_TAG_LENGTH);
+	
+	private final SentryFlushScheduler flush;
+	private final SentryConnectivity connectivity;
+	private final SentryAggregator aggregator;
+	private final SentryBacklogDrain backlog;
+	private SentryWatchdog watchdog;
+	private final SentryTracer tracer;
 
 	private static final String TAG = "Sentry";
 	private static final String DEFAULT_BASE_URL = "https://app.getsentry.com";
+	private static final String RETRY_PREFERENCES = "sentry_retry";
+	private static final long DEFAULT_RETRY_AFTER_MILLIS = 60 * 1000;
+	private static final String CRASH_SLOT_FILE = "sentry_crash_slot";
+	// the previous run's slot, moved aside so this run can map a fresh one before the backlog is loaded
+	private static final String PREVIOUS_CRASH_SLOT_FILE = "sentry_crash_slot.previous";
+	private static final int CRASH_SLOT_SIZE = 256 * 1024;
+	private static final long DEFAULT_STARTUP_DELAY_MILLIS = 1000;
+	private static final int DEFAULT_MAX_QUEUED_EVENTS = 500;
+	private static final int BREADCRUMB_CAPACITY = 100;
+	private static final int DEFAULT_FRAME_BUDGET = 200;
+	private static final int SPAN_CAPACITY = 1024;
+	private static final long DEFAULT_MAX_QUEUED_BYTES = 2 * 1024 * 1024;
+	private static final int DEFAULT_MAX_EVENT_LENGTH = 200 * 1024;
+	private static final int DEFAULT_MAX_STRING_LENGTH = 8 * 1024;
+	private static final int DEFAULT_MAX_TAG_COUNT = 50;
+	private static final int DEFAULT_MAX_TAG_LENGTH = 200;
 	
 	private Sentry() {
-
+		this.connectivity = new SentryConnectivity(new SentryConnectivity.Listener() {
+			@Override
+			public void onConnectivityGained() {
+				flush.onConnectivityGained();
+			}
+		});
+		this.flush = new SentryFlushScheduler(connectivity, new Runnable() {
+			@Override
+			public void run() {
+				sendAllCachedCapturedEvents();
+				dispatcher.flush();
+			}
+		});
+		this.aggregator = new SentryAggregator(flush, new SentryAggregator.Emitter() {
+			@Override
+			public void emit(SentryEventBuilder builder) {
+				captureEvent(builder);
+			}
+		});
+		this.backlog = new SentryBacklogDrain(new SentryBacklogDrain.Sender() {
+			@Override
+			public boolean send(SentryEventRequest request) {
+				return retries.resume(request);
+			}
+			
+			@Override
+			public void flush() {
+				dispatcher.flush();
+			}
+		});
+		this.tracer = new SentryTracer(SPAN_CAPACITY, flush, new SentryTracer.Emitter() {
+			@Override
+			public void emit(SentryEventBuilder builder) {
+				builder = runProcessors(builder.setContextTags(contextTags()));
+				if (builder != null) {
+					doCaptureEventPost(new SentryEventRequest(builder));
+				}
+			}
+		});
 	}
 
 	private static Sentry getInstance() {
@@ -87,15 +235,140 @@ public class Sentry {
 	}
 
 	public static void init(Context context, String baseUrl, String dsn, Map<String, String> tags) {
+		long start = System.nanoTime();
 		Sentry instance = Sentry.getInstance();
 		instance.context = context;
 		instance.dsn = dsn;
 		instance.packageName = context.getPackageName();
-		instance.tags = tags;
+		instance.classifier.setPackageName(instance.packageName);
+		final SentryDeviceContext deviceContext = new SentryDeviceContext(tags, instance.payloadLimits, instance.scrubber);
+		instance.deviceContext = deviceContext;
 		instance.baseUrl = baseUrl;
+		SentryOkHttpTransport previous = instance.okHttpTransport;
+		instance.okHttpTransport = new SentryOkHttpTransport(instance.client, SentryDsn.parse(baseUrl, dsn, VERSION), VERSION);
+		instance.okHttpTransport.setCompression(instance.compression, instance.compressionThreshold);
+		// a transport installed with setTransport is kept
+		if (instance.transport == null || instance.transport == previous) {
+			instance.transport = instance.okHttpTransport;
+		}
+		if (instance.retries == null) {
+			instance.retries = new SentryRetryScheduler(
+				context.getSharedPreferences(RETRY_PREFERENCES, Context.MODE_PRIVATE),
+				new SentryRetryScheduler.Target() {
+					@Override
+					public boolean resend(SentryEventRequest request) {
+						// delivered or evicted while waiting
+						if (!InternalStorage.getInstance().contains(request.getUuid())) {
+							return false;
+						}
+						getInstance().dispatcher.enqueue(request);
+						return true;
+					}
+				});
+			instance.retries.setPolicy(instance.retryBaseDelayMillis, instance.retryMaxDelayMillis, instance.retryMaxAttempts);
+		}
 
 		
 		Sentry.getInstance().setupUncaughtExceptionHandler();
+		
+		// right away rather than after the startup delay, so few events go out without
+		// the app version and a crash during startup finds its slot mapped
+		instance.flush.schedule(new Runnable() {
+			@Override
+			public void run() {
+				getInstance().openCrashSlot();
+				deviceContext.collect(getInstance().context);
+			}
+		}, 0);
+		instance.flush.schedule(new Runnable() {
+			@Override
+			public void run() {
+				getInstance().startInBackground();
+			}
+		}, instance.startupDelayMillis);
+		instance.timings.initMillis = (System.nanoTime() - start) / 1000000;
+	}
+	
+	/**
+	 * Sets how long after init the stored backlog is loaded and sent, so the
+	 * work stays out of the way of the first frames. Call before init.
+	 * @param delayMillis delay in milliseconds, 0 to start right away
+	 */
+	public static void setStartupDelay(long delayMillis) {
+		if (delayMillis < 0) {
+			throw new IllegalArgumentException("Startup delay must not be negative");
+		}
+		getInstance().startupDelayMillis = delayMillis;
+	}
+	
+	/**
+	 * Limits the events kept for later while they can't be sent. Past either
+	 * limit the oldest events of the lowest level are dropped first, so
+	 * FATAL and ERROR events outlive INFO and DEBUG ones.
+	 * @param maxEvents most events kept
+	 * @param maxBytes most request data bytes kept
+	 */
+	public static void setQueueLimits(int maxEvents, long maxBytes) {
+		if (maxEvents < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("Queue limits must be positive");
+		}
+		getInstance().maxQueuedEvents = maxEvents;
+		getInstance().maxQueuedBytes = maxBytes;
+	}
+	
+	/**
+	 * @return events dropped to stay within the queue limits since the queue was loaded
+	 */
+	public static long getEvictedEventCount() {
+		return InternalStorage.getInstance().getEvictedCount();
+	}
+	
+	/**
+	 * @return how long each part of startup took
+	 */
+	public static SentryStartupTimings getStartupTimings() {
+		return getInstance().timings;
+	}
+	
+	/**
+	 * The part of init that touches disk and the network, run on the flush thread.
+	 */
+	private void startInBackground() {
+		dispatcher.pauseUntil(retries.backoffUntil());
+		connectivity.register(context);
+		
+		long start = System.nanoTime();
+		InternalStorage.getInstance();
+		storageLoaded = true;
+		timings.storageLoadMillis = (System.nanoTime() - start) / 1000000;
+		
+		start = System.nanoTime();
+		File previous = new File(context.getFilesDir(), PREVIOUS_CRASH_SLOT_FILE);
+		if (previous.exists()) {
+			try {
+				if (promoteCrash(SentryCrashSlot.open(previous, CRASH_SLOT_SIZE)) && !previous.delete()) {
+					Log.e(TAG, "Unable to delete promoted crash slot");
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to map previous crash slot", e);
+			}
+		}
+		if (crashSlot == null) {
+			try {
+				crashSlot = SentryCrashSlot.open(new File(context.getFilesDir(), CRASH_SLOT_FILE), CRASH_SLOT_SIZE);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to map crash slot", e);
+			}
+			if (crashSlot != null) {
+				promoteCrash(crashSlot);
+			}
+		}
+		timings.crashPromotionMillis = (System.nanoTime() - start) / 1000000;
+		
+		start = System.nanoTime();
+		sendAllCachedCapturedEvents();
+		timings.drainMillis = (System.nanoTime() - start) / 1000000;
+		Log.d(TAG, "Startup - " + timings);
 	}
 	
 	private void setupUncaughtExceptionHandler() {
@@ -111,42 +384,137 @@ public class Sentry {
 			Thread.setDefaultUncaughtExceptionHandler(
 					new SentryUncaughtExceptionHandler(currentHandler, context));
 		}
-		
-		sendAllCachedCapturedEvents();
 	}
 	
-	private static String createXSentryAuthHeader() {
-		String header = "";
-		
-		Uri uri = Uri.parse(Sentry.getInstance().dsn);
-		Log.d("Sentry", "URI - " + uri);
-		String authority = uri.getAuthority().replace("@" + uri.getHost(), "");
-		
-		String[] authorityParts = authority.split(":");
-		String publicKey = authorityParts[0];
-		String secretKey = authorityParts[1];
-		
-		header += "Sentry sentry_version=4,";
-		header += "sentry_client=sentry-android/" + VERSION + ",";
-		header += "sentry_timestamp=" + System.currentTimeMillis() +",";
-		header += "sentry_key=" + publicKey + ",";
-		header += "sentry_secret=" + secretKey;
+	public static void sendAllCachedCapturedEvents() {
+		SentryFlushScheduler flush = getInstance().flush;
+		if (!getInstance().connectivity.isConnected()) {
+			return;
+		}
 		
-		return header;
+		ArrayList<SentryEventRequest> unsentRequests = InternalStorage.getInstance().getUnsentRequests();
+		ArrayList<SentryEventRequest> eligible = new ArrayList<SentryEventRequest>(unsentRequests.size());
+		for (SentryEventRequest request : unsentRequests) {
+			if (flush.isEligible(request.getLevel())) {
+				eligible.add(request);
+			}
+		}
+		getInstance().backlog.start(eligible);
 	}
 	
-	private static String getProjectId() {
-		Uri uri = Uri.parse(Sentry.getInstance().dsn);
-		String path = uri.getPath();
-		String projectId = path.substring(path.lastIndexOf("/") + 1);
-		
-		return projectId;
+	/**
+	 * Sets how the stored backlog is sent. Events go out FATAL and ERROR
+	 * first, newest first within a level, a few at a time.
+	 * @param maxInFlight events sent and not yet acknowledged at once
+	 * @param maxConsecutiveFailures failures in a row after which the rest
+	 *        of the backlog is left for the next drain
+	 */
+	public static void setDrainLimits(int maxInFlight, int maxConsecutiveFailures) {
+		getInstance().backlog.setLimits(maxInFlight, maxConsecutiveFailures);
 	}
-
-	public static void sendAllCachedCapturedEvents() {
-		ArrayList<SentryEventRequest> unsentRequests = InternalStorage.getInstance().getUnsentRequests();
-		for (SentryEventRequest request : unsentRequests) {
-			Sentry.doCaptureEventPost(request);
+	
+	/**
+	 * Sets when stored events are uploaded. Events are always held while the
+	 * device is offline and the queue is drained when it comes back.
+	 * @param unmeteredOnlyForNonFatal hold events below FATAL until the device is on Wi-Fi
+	 * @param coalesceWindowMillis hold events below FATAL and upload them together at
+	 *        most this long after the first one, 0 to upload right away
+	 */
+	public static void setFlushPolicy(boolean unmeteredOnlyForNonFatal, long coalesceWindowMillis) {
+		getInstance().flush.setPolicy(unmeteredOnlyForNonFatal, coalesceWindowMillis);
+	}
+	
+	/**
+	 * Sets how events the server or network failed to take are retried.
+	 * @param baseDelayMillis delay before the first retry, doubled on each further attempt
+	 * @param maxDelayMillis longest delay between two attempts
+	 * @param maxAttempts attempts after which an event is dropped
+	 */
+	public static void setRetryPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+		SentryRetryScheduler.checkPolicy(baseDelayMillis, maxDelayMillis, maxAttempts);
+		Sentry instance = getInstance();
+		instance.retryBaseDelayMillis = baseDelayMillis;
+		instance.retryMaxDelayMillis = maxDelayMillis;
+		instance.retryMaxAttempts = maxAttempts;
+		if (instance.retries != null) {
+			instance.retries.setPolicy(baseDelayMillis, maxDelayMillis, maxAttempts);
+		}
+	}
+	
+	private void retry(SentryEventRequest request, long minDelayMillis) {
+		if (!retries.retry(request, minDelayMillis)) {
+			Log.e(TAG, "Dropping event " + request.getUuid() + " after too many attempts");
+			InternalStorage.getInstance().removeBuilder(request);
+		}
+	}
+	
+	/**
+	 * @return the Retry-After delay in milliseconds, or the fallback if absent or not in seconds
+	 */
+	private static long parseRetryAfter(String retryAfter, long fallback) {
+		if (retryAfter == null) {
+			return fallback;
+		}
+		try {
+			return Math.max(0, (long) (Double.parseDouble(retryAfter.trim()) * 1000));
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
+	}
+	
+	/**
+	 * Adds a tag sent with every event captured by the library, or removes it
+	 * if value is null. Call after init.
+	 */
+	public static void setContextTag(String key, String value) {
+		SentryDeviceContext deviceContext = getInstance().deviceContext;
+		if (deviceContext == null) {
+			throw new IllegalStateException("Sentry is not initialized");
+		}
+		deviceContext.put(key, value);
+	}
+	
+	/**
+	 * Sets a filter that drops messages and exceptions before any event is
+	 * built for them. It runs on the capturing thread, so keep it cheap.
+	 * @param filter the filter, null to keep everything
+	 */
+	public static void setEventFilter(SentryEventFilter filter) {
+		getInstance().eventFilter = filter;
+	}
+	
+	/**
+	 * Adds a processor to the end of the chain every event goes through
+	 * before it is stored. Processors run on the background thread that
+	 * serializes events, and on the crashing thread for crashes.
+	 */
+	public static void addEventProcessor(SentryEventProcessor processor) {
+		if (processor == null) {
+			throw new IllegalArgumentException("Processor must not be null");
+		}
+		getInstance().processors.add(processor);
+	}
+	
+	public static void removeEventProcessor(SentryEventProcessor processor) {
+		getInstance().processors.remove(processor);
+	}
+	
+	/**
+	 * Scrubs every event as it is written: values under the denied keys, at
+	 * any depth and in any case, and every match of the value patterns are
+	 * replaced with "[Filtered]". The rules are compiled once, here. The
+	 * protocol fields event_id, level, timestamp, platform, logger and
+	 * checksum are never scrubbed.
+	 * @param deniedKeys keys whose values are never sent, e.g. "password"
+	 * @param valuePatterns regular expressions for values never sent, e.g. card numbers
+	 * @throws IllegalArgumentException if a pattern is invalid
+	 */
+	public static void setScrubRules(Collection<String> deniedKeys, Collection<String> valuePatterns) {
+		Sentry instance = getInstance();
+		instance.scrubber = new SentryScrubber(deniedKeys, valuePatterns);
+		SentryDeviceContext deviceContext = instance.deviceContext;
+		if (deviceContext != null) {
+			deviceContext.setScrubber(instance.scrubber);
 		}
 	}
 	
@@ -162,10 +530,22 @@ public class Sentry {
 	}
 	
 	public static void captureMessage(String message, SentryEventLevel level) {
+		if (getInstance().dropBeforeInit()) {
+			return;
+		}
+		if (getInstance().isFiltered(level, message, null)) {
+			getInstance().countDropped();
+			return;
+		}
+		if (!getInstance().admission.admit(level, SentryAdmission.fingerprint(message))) {
+			getInstance().countDropped();
+			return;
+		}
+		
 		Sentry.captureEvent(new SentryEventBuilder()
 				.setMessage(message)
 				.setLevel(level)
-				.setTags(getInstance().tags)
+				.setContextTags(getInstance().contextTags())
 		);
 	}
 	
@@ -174,121 +554,581 @@ public class Sentry {
 	}
 	
 	public static void captureException(Throwable t, SentryEventLevel level) {
-		String culprit = getCause(t, t.getMessage());
+		Sentry instance = getInstance();
+		if (instance.dropBeforeInit()) {
+			return;
+		}
+		if (instance.isFiltered(level, t.getMessage(), t)) {
+			instance.countDropped();
+			return;
+		}
+		boolean aggregate = level != SentryEventLevel.FATAL && instance.aggregator.isEnabled();
+		long stackFingerprint = 0;
+		if (aggregate) {
+			stackFingerprint = SentryAggregator.fingerprint(t, instance.classifier);
+			if (instance.aggregator.fold(stackFingerprint)) {
+				instance.countAggregated();
+				return;
+			}
+		}
 		
-		Sentry.captureEvent(new SentryEventBuilder()
-			.setMessage(t.getMessage())
-			.setCulprit(culprit)
-			.setLevel(level)
-			.setException(t)
-			.setTags(getInstance().tags)
-		);
+		if (!instance.admission.admit(level, SentryAdmission.fingerprint(t, instance.classifier))) {
+			instance.countDropped();
+			return;
+		}
+		
+		SentryEventBuilder builder = new SentryEventBuilder(t, level)
+			.setContextTags(instance.contextTags());
+		if (aggregate) {
+			// the trail leading to the first occurrence, not to the end of the window
+			instance.attachBreadcrumbs(builder);
+		}
+		if (aggregate && instance.aggregator.hold(stackFingerprint, builder)) {
+			// sent when the window closes
+			return;
+		}
+		Sentry.captureEvent(builder);
+	}
+	
+	/**
+	 * Folds repeats of the same handled exception into one event. The first
+	 * occurrence is held for the window; repeats with the same exception
+	 * type and in_app frames are only counted. The event is then sent with
+	 * extra.sentry_occurrences, sentry_first_seen and sentry_last_seen.
+	 * Fatal events are never held.
+	 * @param windowMillis how long repeats are folded, 0 to disable
+	 */
+	public static void setAggregationWindow(long windowMillis) {
+		getInstance().aggregator.setWindow(windowMillis);
+	}
+	
+	/**
+	 * Keeps only a fraction of the messages and exceptions captured at a level.
+	 * Dropped events are never built or stored.
+	 * @param level the level to sample
+	 * @param rate fraction of events to keep, from 0 to 1
+	 */
+	public static void setSampleRate(SentryEventLevel level, double rate) {
+		getInstance().admission.setSampleRate(level, rate);
+	}
+	
+	/**
+	 * Limits how often the same exception or message is reported. Events are
+	 * grouped by exception type and top in_app frame, or by message text.
+	 * @param burst events of one group let through back to back, 0 to disable
+	 * @param perSecond rate at which the allowance of a group refills
+	 */
+	public static void setRateLimit(int burst, double perSecond) {
+		getInstance().admission.setRateLimit(burst, perSecond);
+	}
+	
+	/**
+	 * @return events dropped by sampling, rate limiting or a full ingest queue since init
+	 */
+	public static long getDroppedEventCount() {
+		SentryAdmission admission = getInstance().admission;
+		return admission.getSampledOutCount() + admission.getRateLimitedCount() + admission.getOverflowCount();
+	}
+	
+	/**
+	 * Limits the frames sent per stack trace. Frames a cause shares with the
+	 * exception wrapping it and repeats of recursive calls are always left
+	 * out; a trace still longer than the budget keeps its first and last frames.
+	 * The number of frames left out is sent in extra.sentry_frames_dropped.
+	 * @param maxFrames most frames per trace, 0 for no limit
+	 */
+	public static void setFrameBudget(int maxFrames) {
+		if (maxFrames < 0) {
+			throw new IllegalArgumentException("Frame budget must not be negative");
+		}
+		getInstance().frameBudget = maxFrames;
+	}
+	
+	/**
+	 * Marks frames of classes starting with the prefix as not in_app.
+	 * @param prefix a package or class name prefix, e.g. "com.squareup."
+	 */
+	public static void addNotInAppPrefix(String prefix) {
+		getInstance().classifier.addNotInAppPrefix(prefix);
 	}
 
+	/**
+	 * Records a fatal exception in the crash slot. It is queued and sent on the next start.
+	 */
 	public static void captureUncaughtException(Context context, Throwable t) {
-		final Writer result = new StringWriter();
-		final PrintWriter printWriter = new PrintWriter(result);
-		t.printStackTrace(printWriter);
-		try {
-			// Random number to avoid duplicate files
-			long random = System.currentTimeMillis();
-
-			// Embed version in stacktrace filename
-			File stacktrace = new File(getStacktraceLocation(context), "raven-" +  String.valueOf(random) + ".stacktrace");
-			Log.d(TAG, "Writing unhandled exception to: " + stacktrace.getAbsolutePath());
+		SentryEventBuilder builder = new SentryEventBuilder(t, SentryEventLevel.FATAL);
+		builder.setContextTags(getInstance().contextTags());
+		getInstance().attachBreadcrumbs(builder);
+		getInstance().recordCrash(context, builder);
+		getInstance().storeAggregated();
+	}
 
-			// Write the stacktrace to disk
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(stacktrace));
-			oos.writeObject(t);
-			oos.flush();
-			// Close up everything
-			oos.close();
-		} catch (Exception ebos) {
-			// Nothing much we can do about this - the game is over
-			ebos.printStackTrace();
+	/**
+	 * Watches the main thread for stalls and reports them with the main
+	 * thread's stack and the stall's duration in extra.sentry_stall_millis:
+	 * as WARNING once a stall of at least jankMillis ends, and as ERROR as
+	 * soon as one reaches anrMillis. Stalls are not reported while a
+	 * debugger is attached.
+	 * @param intervalMillis how often the main thread is pinged
+	 * @param jankMillis shortest stall reported
+	 * @param anrMillis shortest stall reported as an ANR
+	 */
+	public static void startWatchdog(long intervalMillis, long jankMillis, long anrMillis) {
+		startWatchdog(new SentryWatchdog.MainLooper(), intervalMillis, jankMillis, anrMillis);
+	}
+	
+	static synchronized void startWatchdog(SentryWatchdog.PingSource source, long intervalMillis, long jankMillis, long anrMillis) {
+		stopWatchdog();
+		Sentry instance = getInstance();
+		instance.watchdog = new SentryWatchdog(source, new SentryWatchdog.Reporter() {
+			@Override
+			public void onStall(SentryWatchdog.StallException stall, long stalledMillis, boolean anr) {
+				SentryEventBuilder builder = new SentryEventBuilder(stall, anr ? SentryEventLevel.ERROR : SentryEventLevel.WARNING)
+					.setContextTags(getInstance().contextTags());
+				try {
+					builder.getExtra().put("sentry_stall_millis", stalledMillis);
+				} catch (JSONException e) {
+					e.printStackTrace();
+				}
+				captureEvent(builder);
+			}
+		}, intervalMillis, jankMillis, anrMillis);
+		instance.watchdog.start();
+	}
+	
+	/**
+	 * Starts timing an operation, such as a screen load. Spans started under
+	 * it are sent with it once it is finished, in batches of transactions.
+	 * Starting and finishing transactions and spans allocates nothing.
+	 * @param name what is being timed
+	 * @return the transaction's handle, 0 if it is not recorded because of sampling
+	 */
+	public static long startTransaction(String name) {
+		return getInstance().tracer.startTransaction(name);
+	}
+	
+	/**
+	 * Starts timing a part of a transaction, such as a query.
+	 * @param parent the handle of a transaction or of another span
+	 * @param op what is being timed
+	 * @return the span's handle, 0 if the parent is not recorded
+	 */
+	public static long startSpan(long parent, String op) {
+		return getInstance().tracer.startSpan(parent, op);
+	}
+	
+	/**
+	 * Finishes a transaction or span. Spans still open when their
+	 * transaction finishes are sent without a duration.
+	 * @param handle the handle returned when it was started
+	 */
+	public static void finishSpan(long handle) {
+		getInstance().tracer.finish(handle);
+	}
+	
+	/**
+	 * @param rate fraction of transactions recorded, from 0 to 1
+	 */
+	public static void setTracesSampleRate(double rate) {
+		getInstance().tracer.setSampleRate(rate);
+	}
+	
+	/**
+	 * Sets how finished transactions are grouped into events.
+	 * @param maxTransactions transactions sent in one event
+	 * @param lingerMillis longest time a finished transaction waits for its event
+	 */
+	public static void setTransactionBatching(int maxTransactions, long lingerMillis) {
+		getInstance().tracer.setBatching(maxTransactions, lingerMillis);
+	}
+	
+	public static synchronized void stopWatchdog() {
+		Sentry instance = getInstance();
+		if (instance.watchdog != null) {
+			instance.watchdog.stop();
+			instance.watchdog = null;
 		}
-
-		Log.d(TAG, result.toString());
+	}
+	
+	/**
+	 * @return the tags sent with every event, serialized once
+	 */
+	private SentryJsonFragment contextTags() {
+		SentryDeviceContext deviceContext = this.deviceContext;
+		if (deviceContext == null) {
+			// captured before init
+			return new SentryJsonFragment(SentryDeviceContext.DEVICE_TAGS);
+		}
+		return deviceContext.fragment();
 	}
 
-	private static String getCause(Throwable t, String culprit) {
-		for (StackTraceElement stackTrace : t.getStackTrace()) {
-			if (stackTrace.toString().contains(Sentry.getInstance().packageName)) {
-				culprit = stackTrace.toString();
-				break;
+	/**
+	 * Records a breadcrumb, attached to every event captured afterwards
+	 * together with the other most recent ones. Safe to call from any thread
+	 * at a high rate; pass constant strings to keep it allocation free.
+	 * @param category what kind of thing happened, e.g. "ui.click" or "http"
+	 * @param message what happened
+	 */
+	public static void addBreadcrumb(String category, String message) {
+		getInstance().breadcrumbs.record(category, message, 0);
+	}
+	
+	/**
+	 * @param value a number to go with the breadcrumb, such as a status code or duration
+	 * @see #addBreadcrumb(String, String)
+	 */
+	public static void addBreadcrumb(String category, String message, long value) {
+		getInstance().breadcrumbs.record(category, message, value);
+	}
+	
+	private void attachBreadcrumbs(SentryEventBuilder builder) {
+		if (!breadcrumbs.isEmpty() && !builder.event.containsKey("breadcrumbs")) {
+			builder.setBreadcrumbs(breadcrumbs.snapshot());
+		}
+	}
+	
+	/**
+	 * Writes the event to the crash slot, or to storage if the slot is
+	 * unavailable or too small. Storage is only used once startup has
+	 * loaded it; loading it here would replay the backlog on the crashing
+	 * thread, or fail outright before init.
+	 * @param context used to map the slot if the flush thread has not yet
+	 */
+	private void recordCrash(Context context, SentryEventBuilder builder) {
+		builder = runProcessors(builder);
+		if (builder == null) {
+			return;
+		}
+		String json = SentryEventWriter.write(builder.prepare(), payloadLimits, scrubber);
+		SentryCrashSlot slot = crashSlot;
+		if (slot == null && !storageLoaded && context != null) {
+			slot = openCrashSlotForCrash(context);
+		}
+		if (slot != null && slot.write(json)) {
+			return;
+		}
+		if (storageLoaded) {
+			InternalStorage.getInstance().addRequest(new SentryEventRequest(UUID.randomUUID(), json));
+		} else {
+			Log.e(TAG, "Unable to record crash, the crash slot is unavailable");
+		}
+	}
+	
+	/**
+	 * Maps the slot on the crashing thread, for a crash before init or
+	 * before the flush thread got to it. A slot still holding an earlier
+	 * crash that was never promoted is left alone.
+	 */
+	private static SentryCrashSlot openCrashSlotForCrash(Context context) {
+		try {
+			SentryCrashSlot slot = SentryCrashSlot.open(new File(context.getFilesDir(), CRASH_SLOT_FILE), CRASH_SLOT_SIZE);
+			return slot.isEmpty() ? slot : null;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to map crash slot", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Maps a fresh crash slot for this run, on the flush thread right after
+	 * init. The previous run's slot is moved aside first, to be promoted
+	 * once the backlog is loaded. If an earlier promotion is still pending,
+	 * the slot is left to the startup task, so no crash is overwritten.
+	 */
+	private void openCrashSlot() {
+		if (crashSlot != null) {
+			return;
+		}
+		File slot = new File(context.getFilesDir(), CRASH_SLOT_FILE);
+		File previous = new File(context.getFilesDir(), PREVIOUS_CRASH_SLOT_FILE);
+		if (previous.exists() || (slot.exists() && !slot.renameTo(previous))) {
+			return;
+		}
+		try {
+			crashSlot = SentryCrashSlot.open(slot, CRASH_SLOT_SIZE);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to map crash slot", e);
+		}
+	}
+	
+	/**
+	 * Moves a crash recorded by a previous run into the queue. The slot is
+	 * only emptied once the crash is in the journal; until then it is
+	 * promoted again on the next start.
+	 * @return true if the slot holds nothing left to promote
+	 */
+	private boolean promoteCrash(SentryCrashSlot slot) {
+		String json = slot.read();
+		if (json == null) {
+			return true;
+		}
+		UUID uuid;
+		try {
+			// the same crash gets the same id, so promoting it twice stores it once
+			uuid = UUID.nameUUIDFromBytes(json.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		if (!InternalStorage.getInstance().addRequest(new SentryEventRequest(uuid, json))) {
+			return false;
+		}
+		slot.clear();
+		return true;
+	}
+	
+	/**
+	 * Stores the events held for aggregation on the calling thread, so a
+	 * crash does not lose them. Loading the backlog is too much to do on a
+	 * crashing thread, so before startup has loaded it they are dropped.
+	 */
+	private void storeAggregated() {
+		List<SentryEventBuilder> held = aggregator.drain();
+		if (!storageLoaded) {
+			if (!held.isEmpty()) {
+				Log.e(TAG, "Dropping " + held.size() + " aggregated events, storage is not loaded yet");
+				stats.captured.addAndGet(held.size());
+				stats.dropped.addAndGet(held.size());
 			}
+			return;
+		}
+		for (SentryEventBuilder builder : held) {
+			stats.captured.incrementAndGet();
+			if (captureListener != null) {
+				builder = captureListener.beforeCapture(builder);
+				if (builder == null) {
+					stats.dropped.incrementAndGet();
+					continue;
+				}
+			}
+			builder = runProcessors(builder);
+			if (builder == null) {
+				continue;
+			}
+			InternalStorage.getInstance().addRequest(new SentryEventRequest(builder));
 		}
-		
-		return culprit;
 	}
-
-	private static File getStacktraceLocation(Context context) {
-		return new File(context.getCacheDir(), "crashes");
+	
+	private boolean isFiltered(SentryEventLevel level, String message, Throwable t) {
+		SentryEventFilter filter = eventFilter;
+		return filter != null && filter.shouldDrop(level, message, t);
+	}
+	
+	/**
+	 * Runs the event through the processor chain, in order.
+	 * @return the processed event, or null if a processor dropped it
+	 */
+	private SentryEventBuilder runProcessors(SentryEventBuilder builder) {
+		// processors see the exception the same as a sent event would carry it
+		builder.materializeException();
+		for (SentryEventProcessor processor : processors) {
+			try {
+				builder = processor.process(builder);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Event processor " + processor.getClass().getName() + " failed, skipping it", e);
+				continue;
+			}
+			if (builder == null) {
+				stats.dropped.incrementAndGet();
+				return null;
+			}
+		}
+		return builder;
+	}
+	
+	/**
+	 * Counts a repeat folded into an event held for aggregation.
+	 */
+	private void countAggregated() {
+		stats.captured.incrementAndGet();
+		stats.aggregated.incrementAndGet();
+	}
+	
+	/**
+	 * Counts an event turned away before it was built.
+	 */
+	private void countDropped() {
+		stats.captured.incrementAndGet();
+		stats.dropped.incrementAndGet();
+	}
+	
+	/**
+	 * Drops and counts an event captured before init, on the caller's
+	 * thread, since there is nowhere to store it yet.
+	 */
+	private boolean dropBeforeInit() {
+		if (context != null) {
+			return false;
+		}
+		Log.e(TAG, "Event captured before Sentry.init, dropping it");
+		countDropped();
+		return true;
+	}
+	
+	/**
+	 * @return a snapshot of the client's counters and timings
+	 */
+	public static SentryStats.Snapshot getStats() {
+		return getInstance().stats.snapshot();
+	}
+	
+	/**
+	 * Calls the listener with a snapshot of the stats on a background thread every period.
+	 * @param listener the listener, null to stop
+	 * @param periodMillis time between two calls
+	 */
+	public static void setStatsListener(SentryStats.Listener listener, long periodMillis) {
+		getInstance().stats.setListener(listener, periodMillis);
 	}
 	
+	/**
+	 * Runs the capture listener and queues the event. Serializing and storing
+	 * it happen on the ingest thread.
+	 */
 	public static void captureEvent(SentryEventBuilder builder) {
-		final SentryEventRequest request;
+		if (getInstance().dropBeforeInit()) {
+			return;
+		}
+		getInstance().stats.captured.incrementAndGet();
+		getInstance().attachBreadcrumbs(builder);
 		if (Sentry.getInstance().captureListener != null) {
 			
 			builder = Sentry.getInstance().captureListener.beforeCapture(builder);
 			if (builder == null) {
 				Log.e(Sentry.TAG, "SentryEventBuilder in captureEvent is null");
+				getInstance().stats.dropped.incrementAndGet();
 				return;
 			}
-			
-			request = new SentryEventRequest(builder);
-		} else {
-			request = new SentryEventRequest(builder);
 		}
 
+		getInstance().ingest.offer(builder);
+	}
+	
+	/**
+	 * Serializes and stores a captured event, on the ingest thread.
+	 */
+	private static void processCapturedEvent(SentryEventBuilder builder) {
+		builder = getInstance().runProcessors(builder);
+		if (builder == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		SentryEventRequest request = new SentryEventRequest(reportDropped(builder));
+		getInstance().stats.serializationMicros.record((System.nanoTime() - start) / 1000);
 		doCaptureEventPost(request);
 	}
+	
+	/**
+	 * Sets how many captured events may wait for the ingest thread and what
+	 * happens to new ones when that many are waiting.
+	 * @param capacity events that may wait
+	 * @param backpressure what gives when the queue is full
+	 */
+	public static void setIngestQueue(int capacity, SentryBackpressure backpressure) {
+		getInstance().ingest.setLimits(capacity, backpressure);
+	}
 
-	private static boolean isNetworkAvailable() {
-		PackageManager pm = Sentry.getInstance().context.getPackageManager();
-		int hasPerm = pm.checkPermission(android.Manifest.permission.ACCESS_NETWORK_STATE, Sentry.getInstance().context.getPackageName());
-		if (hasPerm == PackageManager.PERMISSION_DENIED) {
-		   return true;
+	/**
+	 * Adds the number of events dropped since the last report to the event's extra.
+	 */
+	private static SentryEventBuilder reportDropped(SentryEventBuilder builder) {
+		long dropped = getInstance().admission.takeUnreported();
+		if (dropped > 0) {
+			try {
+				builder.getExtra().put("sentry_dropped_events", dropped);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
 		}
-		
-	    ConnectivityManager connectivityManager = (ConnectivityManager) Sentry.getInstance().context.getSystemService(Context.CONNECTIVITY_SERVICE);
-	    NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-	    return activeNetworkInfo != null && activeNetworkInfo.isConnected();
+		return builder;
 	}
 	
 	private static void doCaptureEventPost(final SentryEventRequest request) {
-		if (!isNetworkAvailable()) {
-			InternalStorage.getInstance().addRequest(request);
+		// Persist first so the event survives the process until the server acknowledges it
+		InternalStorage.getInstance().addRequest(request);
+		
+		if (!getInstance().flush.sendNow(request.getLevel())) {
 			return;
 		}
 		
+		getInstance().dispatcher.enqueue(request);
+	}
+	
+	/**
+	 * Sets how events are grouped into uploads.
+	 * @param maxEvents events sent back to back in one batch
+	 * @param maxBytes approximate request data size of one batch
+	 * @param lingerMillis longest time an event waits for its batch to fill
+	 */
+	public static void setBatching(int maxEvents, long maxBytes, long lingerMillis) {
+		getInstance().dispatcher.setBatchLimits(maxEvents, maxBytes, lingerMillis);
+	}
+	
+	/**
+	 * Sets how many batches may upload at the same time, 4 by default.
+	 * Each batch goes out one event per round trip, so this bounds the
+	 * sustainable rate at about maxUploads / round trip time; size the
+	 * queue limits to absorb bursts above it.
+	 * @param maxUploads concurrent uploads, the transport must allow as many calls at once
+	 */
+	public static void setConcurrentUploads(int maxUploads) {
+		getInstance().dispatcher.setMaxSenders(maxUploads);
+	}
+	
+	/**
+	 * Limits the size of every event, enforced while it is serialized.
+	 * Longer strings are cut short and end in "..."; once an event is full
+	 * the remaining entries of its objects and arrays are left out, the
+	 * exception, breadcrumbs and extra first, and their number is sent in
+	 * extra.sentry_truncated. Sizes are in characters of JSON text.
+	 * @param maxEventLength the whole event
+	 * @param maxStringLength any single string, e.g. the message or an extra value
+	 * @param maxTagCount tags per event
+	 * @param maxTagLength a single tag value
+	 */
+	public static void setPayloadLimits(int maxEventLength, int maxStringLength, int maxTagCount, int maxTagLength) {
 		Sentry instance = getInstance();
-		
-		RequestBody body = RequestBody.create(json, request.getRequestData());
-		
-		Request req = new Request.Builder()
-			.url(instance.baseUrl + "/api/" + getProjectId() + "/store/")
-			.addHeader("User-Agent", "sentry-android/" + VERSION)
-			.addHeader("X-Sentry-Auth", createXSentryAuthHeader())
-			.post(body)
-			.build();
-		
-		instance.client.newCall(req).enqueue(new Callback(){
-
-			@Override
-			public void onResponse(Response res) throws IOException {
-				InternalStorage.getInstance().removeBuilder(request);
-				Log.d(TAG, "SendEvent - " + res.code() + " " + res.body().string());
-			}
-			
-			@Override
-			public void onFailure(Request req, IOException err) {
-				InternalStorage.getInstance().addRequest(request);
-
-				Log.e(TAG, "SendEvent - fail", err);
-			}
-			
-		});
+		instance.payloadLimits = new SentryEventWriter.Limits(maxEventLength, maxStringLength, maxTagCount, maxTagLength);
+		SentryDeviceContext deviceContext = instance.deviceContext;
+		if (deviceContext != null) {
+			deviceContext.setLimits(instance.payloadLimits);
+		}
+	}
+	
+	/**
+	 * Counts the objects allocated on the calling thread while serializing
+	 * the event, with the old JSONObject copy and with the streaming writer.
+	 * Both outputs are checked to be identical.
+	 * @param builder the event to serialize
+	 * @return allocation counts, {JSONObject, writer}
+	 */
+	public static int[] measureSerializationAllocations(SentryEventBuilder builder) {
+		return SentryEventWriter.measureAllocations(builder.prepare());
+	}
+	
+	/**
+	 * Sets how event bodies are encoded on the wire.
+	 * @param compression the encoding to use, NONE to send plain JSON
+	 * @param thresholdChars events shorter than this are always sent uncompressed
+	 */
+	public static void setCompression(SentryCompression compression, int thresholdChars) {
+		if (compression == null || thresholdChars < 0) {
+			throw new IllegalArgumentException("Invalid compression settings");
+		}
+		Sentry instance = getInstance();
+		instance.compression = compression;
+		instance.compressionThreshold = thresholdChars;
+		if (instance.okHttpTransport != null) {
+			instance.okHttpTransport.setCompression(compression, thresholdChars);
+		}
+	}
+	
+	/**
+	 * Replaces the HTTP transport, e.g. with a {@link SentryMemoryTransport} in tests.
+	 * @param transport the transport to use, null to go back to HTTP
+	 */
+	public static void setTransport(SentryTransport transport) {
+		Sentry instance = getInstance();
+		instance.transport = transport != null ? transport : instance.okHttpTransport;
 	}
 
 	private class SentryUncaughtExceptionHandler implements UncaughtExceptionHandler {
@@ -306,13 +1146,15 @@ public class Sentry {
 		public void uncaughtException(Thread thread, Throwable e) {
 			// Here you should have a more robust, permanent record of problems
 			SentryEventBuilder builder = new SentryEventBuilder(e, SentryEventBuilder.SentryEventLevel.FATAL);
+			attachBreadcrumbs(builder);
 			if (Sentry.getInstance().captureListener != null) {
 				builder = Sentry.getInstance().captureListener.beforeCapture(builder);
 			}			
 
             if (builder != null) {
-            	builder.setTags(tags);
-                InternalStorage.getInstance().addRequest(new SentryEventRequest(builder));
+            	builder.setContextTags(contextTags());
+                recordCrash(context, builder);
+            	storeAggregated();
             } else {
                 Log.e(Sentry.TAG, "SentryEventBuilder in uncaughtException is null");
             }
@@ -323,12 +1165,20 @@ public class Sentry {
 
 	}
 	
-	private static class InternalStorage {
+	static class InternalStorage {
 
 		private final static String FILE_NAME = "unsent_requests";
-		private ArrayList<SentryEventRequest> unsentRequests;
+		private final static String JOURNAL_DIRECTORY = "unsent_requests.journal";
+		
+		private final LinkedHashMap<UUID, SentryEventRequest> unsentRequests = new LinkedHashMap<UUID, SentryEventRequest>();
+		private final SentryJournal journal;
+		
+		// oldest first, one set per level so eviction finds the lowest priority event in O(1)
+		private final ArrayList<LinkedHashSet<UUID>> byLevel = new ArrayList<LinkedHashSet<UUID>>();
+		private long unsentBytes;
+		private long evictedCount;
 		
-		private static InternalStorage getInstance() {
+		static InternalStorage getInstance() {
 			return LazyHolder.instance;
 		}
 
@@ -337,51 +1187,214 @@ public class Sentry {
 		}
 		
 		private InternalStorage() {
-			this.unsentRequests = this.readObject(Sentry.getInstance().context);
-		}		
+			Context context = Sentry.getInstance().context;
+			Executor compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Sentry-Journal");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+			this.journal = new SentryJournal(new File(context.getFilesDir(), JOURNAL_DIRECTORY), compactor);
+			for (int i = 0; i < SentryEventLevel.values().length; i++) {
+				byLevel.add(new LinkedHashSet<UUID>());
+			}
+			
+			synchronized(this) {
+				try {
+					this.journal.open(new SentryJournal.Replay() {
+						@Override
+						public void onAdd(UUID uuid, byte[] payload) {
+							put(new SentryEventRequest(uuid, decode(payload)));
+						}
+						
+						@Override
+						public void onRemove(UUID uuid) {
+							take(uuid);
+						}
+						
+						@Override
+						public void onReset() {
+							unsentRequests.clear();
+							for (LinkedHashSet<UUID> level : byLevel) {
+								level.clear();
+							}
+							unsentBytes = 0;
+							Sentry.getInstance().stats.setQueue(0, 0);
+						}
+					});
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to open unsent requests journal", e);
+				}
+				// against the replayed queue only, a record removed later in the journal must not cost a survivor its place
+				ArrayList<UUID> evicted = new ArrayList<UUID>();
+				evictOverQuota(evicted);
+				for (UUID uuid : evicted) {
+					discard(uuid);
+				}
+				
+				this.migrateLegacyFile(context);
+			}
+		}
 		
 		/**
-		 * @return the unsentRequests
+		 * @return a snapshot of the unsentRequests
 		 */
 		public ArrayList<SentryEventRequest> getUnsentRequests() {
-			return unsentRequests;
+			synchronized(this) {
+				return new ArrayList<SentryEventRequest>(unsentRequests.values());
+			}
 		}
 
-		public void addRequest(SentryEventRequest request) {
+		public boolean contains(UUID uuid) {
 			synchronized(this) {
-				if (!this.unsentRequests.contains(request)) {
-					this.unsentRequests.add(request);
-					this.writeObject(Sentry.getInstance().context, this.unsentRequests);
+				return unsentRequests.containsKey(uuid);
+			}
+		}
+
+		/**
+		 * @return false if the request is only held in memory because the journal could not be written
+		 */
+		public boolean addRequest(SentryEventRequest request) {
+			synchronized(this) {
+				boolean journaled = true;
+				if (!this.unsentRequests.containsKey(request.getUuid())) {
+					this.put(request);
+					SentryStats stats = Sentry.getInstance().stats;
+					try {
+						long start = System.nanoTime();
+						this.journal.append(request.getUuid(), encode(request.getRequestData()));
+						stats.storageWriteMicros.record((System.nanoTime() - start) / 1000);
+						stats.persisted.incrementAndGet();
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to journal request " + request.getUuid(), e);
+						journaled = false;
+					}
+					
+					ArrayList<UUID> evicted = new ArrayList<UUID>();
+					this.evictOverQuota(evicted);
+					for (UUID uuid : evicted) {
+						this.discard(uuid);
+					}
 				}
+				return journaled;
 			}
 		}
 		
 		public void removeBuilder(SentryEventRequest request) {
 			synchronized(this) {
-				this.unsentRequests.remove(request);
-				this.writeObject(Sentry.getInstance().context, this.unsentRequests);
+				if (this.take(request.getUuid()) != null) {
+					this.journalRemove(request.getUuid());
+				}
 			}
 		}
-
-		private void writeObject(Context context, ArrayList<SentryEventRequest> requests) {
+		
+		/**
+		 * @return the number of events dropped to stay within the queue limits
+		 */
+		public long getEvictedCount() {
+			synchronized(this) {
+				return evictedCount;
+			}
+		}
+		
+		private void put(SentryEventRequest request) {
+			unsentRequests.put(request.getUuid(), request);
+			byLevel.get(request.getLevel().ordinal()).add(request.getUuid());
+			unsentBytes += request.getRequestData().length();
+			Sentry.getInstance().stats.setQueue(unsentRequests.size(), unsentBytes);
+		}
+		
+		private SentryEventRequest take(UUID uuid) {
+			SentryEventRequest request = unsentRequests.remove(uuid);
+			if (request != null) {
+				byLevel.get(request.getLevel().ordinal()).remove(uuid);
+				unsentBytes -= request.getRequestData().length();
+				Sentry.getInstance().stats.setQueue(unsentRequests.size(), unsentBytes);
+			}
+			return request;
+		}
+		
+		/**
+		 * Drops events, lowest level first and oldest first within a level,
+		 * until the queue is back within its count and byte limits.
+		 */
+		private void evictOverQuota(List<UUID> evicted) {
+			Sentry sentry = Sentry.getInstance();
+			while (unsentRequests.size() > sentry.maxQueuedEvents || (unsentBytes > sentry.maxQueuedBytes && unsentRequests.size() > 1)) {
+				UUID victim = null;
+				for (int i = byLevel.size() - 1; i >= 0 && victim == null; i--) {
+					if (!byLevel.get(i).isEmpty()) {
+						victim = byLevel.get(i).iterator().next();
+					}
+				}
+				if (victim == null) {
+					return;
+				}
+				take(victim);
+				evicted.add(victim);
+				evictedCount++;
+				sentry.stats.evicted.incrementAndGet();
+			}
+		}
+		
+		/**
+		 * Forgets an evicted event in the journal and the retry schedule.
+		 */
+		private void discard(UUID uuid) {
+			this.journalRemove(uuid);
+			SentryRetryScheduler retries = Sentry.getInstance().retries;
+			if (retries != null) {
+				retries.forget(uuid);
+			}
+		}
+		
+		private void journalRemove(UUID uuid) {
 			try {
-				FileOutputStream fos = context.openFileOutput(FILE_NAME, Context.MODE_PRIVATE);
-				ObjectOutputStream oos = new ObjectOutputStream(fos);
-				oos.writeObject(requests);
-				oos.close();
-				fos.close();
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+				this.journal.remove(uuid);
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.e(TAG, "Unable to journal removal of " + uuid, e);
+			}
+		}
+
+		/**
+		 * Moves requests saved by the old whole-list serialization format into
+		 * the journal. The file is kept, and tried again on the next start,
+		 * unless every request in it was read and journaled.
+		 */
+		private void migrateLegacyFile(Context context) {
+			File legacy = context.getFileStreamPath(FILE_NAME);
+			if (legacy == null || !legacy.exists()) {
+				return;
+			}
+			
+			ArrayList<SentryEventRequest> requests = this.readObject(context);
+			if (requests == null) {
+				return;
+			}
+			boolean journaled = true;
+			for (SentryEventRequest request : requests) {
+				if (request.getUuid() != null && !this.addRequest(request)) {
+					journaled = false;
+				}
+			}
+			if (journaled) {
+				context.deleteFile(FILE_NAME);
 			}
 		}
 
+		/**
+		 * @return the saved requests, or null if the file could not be read
+		 */
+		@SuppressWarnings("unchecked")
 		private ArrayList<SentryEventRequest> readObject(Context context) {
 			try {
 				FileInputStream fis = context.openFileInput(FILE_NAME);
 				ObjectInputStream ois = new ObjectInputStream(fis);
 				ArrayList<SentryEventRequest> requests = (ArrayList<SentryEventRequest>) ois.readObject();
+				ois.close();
 				return requests;
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
@@ -392,8 +1405,48 @@ public class Sentry {
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
 			}
-			return new ArrayList<SentryEventRequest>();
+			return null;
+		}
+		
+		private static byte[] encode(String data) {
+			try {
+				return data.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private static String decode(byte[] data) {
+			try {
+				return new String(data, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	public static enum SentryBackpressure {
+		
+		/** throw away the event being captured */
+		DROP_NEWEST,
+		/** throw away the longest waiting event to make room */
+		DROP_OLDEST,
+		/** serialize and store the event on the capturing thread */
+		CALLER_RUNS
+		
+	}
+	
+	public static enum SentryCompression {
+		
+		NONE(null),
+		GZIP("gzip"),
+		DEFLATE("deflate");
+		
+		final String encoding;
+		SentryCompression(String encoding) {
+			this.encoding = encoding;
 		}
+		
 	}
 
 	public abstract static class SentryEventCaptureListener {
@@ -402,13 +1455,50 @@ public class Sentry {
 		
 	}
 	
+	/**
+	 * Decides on the capturing thread, before an event is built, whether a
+	 * message or exception is dropped.
+	 */
+	public abstract static class SentryEventFilter {
+		
+		/**
+		 * @param throwable the exception, null for a message
+		 */
+		public abstract boolean shouldDrop(SentryEventLevel level, String message, Throwable throwable);
+		
+	}
+	
+	/**
+	 * One step of the chain events go through on the background thread
+	 * before they are serialized.
+	 */
+	public abstract static class SentryEventProcessor {
+		
+		/**
+		 * @return the event to keep, changed or not, or null to drop it
+		 */
+		public abstract SentryEventBuilder process(SentryEventBuilder builder);
+		
+	}
+	
 	public static class SentryEventRequest implements Serializable {
+		
+		// pinned to the value computed for the original class, so queues saved by older versions still load
+		private static final long serialVersionUID = -7358025162719854416L;
+		
 		private String requestData;
 		private UUID uuid;
+		private transient SentryEventLevel level;
 		
 		public SentryEventRequest(SentryEventBuilder builder) {
-			this.requestData = new JSONObject(builder.event).toString();
+			this.requestData = SentryEventWriter.write(builder.prepare(), Sentry.getInstance().payloadLimits, Sentry.getInstance().scrubber);
 			this.uuid = UUID.randomUUID();
+			this.level = SentryEventLevel.fromValue((String) builder.event.get("level"));
+		}
+		
+		SentryEventRequest(UUID uuid, String requestData) {
+			this.requestData = requestData;
+			this.uuid = uuid;
 		}
 		
 		/**
@@ -424,6 +1514,78 @@ public class Sentry {
 		public UUID getUuid() {
 			return uuid;
 		}
+		
+		/**
+		 * @return the level of the event, read back from the request data for stored events
+		 */
+		SentryEventLevel getLevel() {
+			if (level == null) {
+				level = SentryEventLevel.fromValue(topLevelString(requestData, "level"));
+			}
+			return level;
+		}
+		
+		/**
+		 * Finds a key of the outermost object only, skipping over nested
+		 * values and string contents without parsing the whole event.
+		 * @return the raw string value of the key, or null
+		 */
+		static String topLevelString(String json, String key) {
+			int depth = 0;
+			boolean keyNext = false;
+			for (int i = 0; i < json.length(); i++) {
+				char c = json.charAt(i);
+				if (c == '"') {
+					int end = stringEnd(json, i);
+					if (end < 0) {
+						return null;
+					}
+					if (depth == 1 && keyNext) {
+						keyNext = false;
+						if (end - i - 1 == key.length() && json.startsWith(key, i + 1)) {
+							int colon = skipWhitespace(json, end + 1);
+							int value = colon < json.length() && json.charAt(colon) == ':' ? skipWhitespace(json, colon + 1) : json.length();
+							if (value < json.length() && json.charAt(value) == '"') {
+								int valueEnd = stringEnd(json, value);
+								return valueEnd < 0 ? null : json.substring(value + 1, valueEnd);
+							}
+							return null;
+						}
+					}
+					i = end;
+				} else if (c == '{' || c == '[') {
+					depth++;
+					keyNext = depth == 1 && c == '{';
+				} else if (c == '}' || c == ']') {
+					depth--;
+				} else if (c == ',') {
+					keyNext = depth == 1;
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * @return the index of the quote closing the string opened at start, or -1
+		 */
+		private static int stringEnd(String json, int start) {
+			for (int i = start + 1; i < json.length(); i++) {
+				char c = json.charAt(i);
+				if (c == '\\') {
+					i++;
+				} else if (c == '"') {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		private static int skipWhitespace(String json, int i) {
+			while (i < json.length() && json.charAt(i) <= ' ') {
+				i++;
+			}
+			return i;
+		}
 
 		@Override
 		public boolean equals(Object other) {
@@ -442,12 +1604,22 @@ public class Sentry {
 
 		private static final long serialVersionUID = -8589756678369463988L;
 		
-		private final static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-		static {
-			sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		}
+		// SimpleDateFormat is not thread safe, so every serializing thread gets its own
+		private final static ThreadLocal<SimpleDateFormat> sdf = new ThreadLocal<SimpleDateFormat>() {
+			@Override
+			protected SimpleDateFormat initialValue() {
+				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				return format;
+			}
+		};
+		
+		private static final SentryJsonFragment DEFAULT_MODULES = new SentryJsonFragment(Collections.singletonMap("android-sentry", Sentry.VERSION));
 		
-		private Map<String, Object> event;
+		Map<String, Object> event;
+		private long timestamp;
+		// set by the Throwable constructor, turned into "exception" by prepare()
+		private PendingException pendingException;
 		
 		public static enum SentryEventLevel {
 			
@@ -462,6 +1634,18 @@ public class Sentry {
 				this.value = value;
 			}
 			
+			/**
+			 * @return the level with this wire value, ERROR if unknown as the server assumes
+			 */
+			static SentryEventLevel fromValue(String value) {
+				for (SentryEventLevel level : values()) {
+					if (level.value.equals(value)) {
+						return level;
+					}
+				}
+				return ERROR;
+			}
+			
 		}
 		
 		public SentryEventBuilder() {
@@ -469,19 +1653,16 @@ public class Sentry {
 			event.put("event_id", UUID.randomUUID().toString().replace("-", ""));
 			this.setPlatform("android");
 			this.setTimestamp(System.currentTimeMillis());
-			this.setModule("android-sentry", Sentry.VERSION);
+			event.put("modules", DEFAULT_MODULES);
 			//this.setModule(AsyncHttpClient.class.getPackage().getName(), new AsyncHttpClient());
 		}
 		
 		public SentryEventBuilder(Throwable t, SentryEventLevel level) {
 			this();
 			
-			String culprit = getCause(t, t.getMessage());
-			
 			this.setMessage(t.getMessage())
-			.setCulprit(culprit)
-			.setLevel(level)
-			.setException(t);
+			.setLevel(level);
+			this.pendingException = new PendingException(t);
 		}
 
 		/**
@@ -500,7 +1681,8 @@ public class Sentry {
 		 * @return
 		 */
 		public SentryEventBuilder setTimestamp(long timestamp) {
-			event.put("timestamp", sdf.format(new Date(timestamp)));
+			// formatted when the event is serialized, off the capturing thread
+			this.timestamp = timestamp;
 			return this;
 		}
 		
@@ -556,21 +1738,31 @@ public class Sentry {
 		
 		public SentryEventBuilder setTags(JSONObject tags) {
 			try{
-				tags.put("device", Build.DEVICE);
-				tags.put("device_name", Build.MODEL);
-				tags.put("device_brand", Build.BRAND);
-				tags.put("android_version", String.valueOf(Build.VERSION.SDK_INT));
-				tags.put("android_version_name", Build.VERSION.RELEASE);
+				for (Map.Entry<String, String> entry : SentryDeviceContext.DEVICE_TAGS.entrySet()) {
+					tags.put(entry.getKey(), entry.getValue());
+				}
 			}catch(JSONException e){
 			}
 			event.put("tags", tags);
 			return this;
 		}
 		
+		/**
+		 * Uses tags that were serialized ahead of time. They are copied out
+		 * only if something asks for them with getTags.
+		 */
+		SentryEventBuilder setContextTags(SentryJsonFragment tags) {
+			event.put("tags", tags);
+			return this;
+		}
+		
 		public JSONObject getTags() {
 			if (!event.containsKey("tags")) {
 				setTags(new HashMap<String, String>());
 			}
+			if (event.get("tags") instanceof SentryJsonFragment) {
+				event.put("tags", ((SentryJsonFragment) event.get("tags")).toJSONObject());
+			}
 			
 			return (JSONObject) event.get("tags");
 		}
@@ -622,6 +1814,9 @@ public class Sentry {
 			if(!event.containsKey("modules")){
 				event.put("modules", new HashMap<String, String>());
 			}
+			if (event.get("modules") instanceof SentryJsonFragment) {
+				event.put("modules", ((SentryJsonFragment) event.get("modules")).toMap());
+			}
 			((Map<String, String>) event.get("modules")).put(name, version);
 			return this;
 		} 
@@ -630,9 +1825,32 @@ public class Sentry {
 			if(!event.containsKey("modules")){
 				event.put("modules", new HashMap<String, String>());
 			}
+			if (event.get("modules") instanceof SentryJsonFragment) {
+				return ((SentryJsonFragment) event.get("modules")).toJSONObject();
+			}
 			return new JSONObject((Map<String, String>) event.get("modules"));
 		}
 		
+		/**
+		 * Fills in the fields that are formatted lazily.
+		 * @return the event map, ready to serialize
+		 */
+		Map<String, Object> prepare() {
+			materializeException();
+			event.put("timestamp", sdf.get().format(new Date(timestamp)));
+			return event;
+		}
+		
+		/**
+		 * "breadcrumbs": {"values": [{"timestamp": 1304358096.0, "category": "ui.click", "message": "..."}]}
+		 * @param breadcrumbs
+		 * @return
+		 */
+		public SentryEventBuilder setBreadcrumbs(JSONObject breadcrumbs) {
+			event.put("breadcrumbs", breadcrumbs);
+			return this;
+		}
+		
 		public SentryEventBuilder setChecksum(String checksum) {
 			event.put("checksum", calculateChecksum(checksum));
 			return this;
@@ -648,32 +1866,108 @@ public class Sentry {
 		 * @return
 		 */
 		public SentryEventBuilder setException(Throwable t) {
+			// replaces any exception still pending from the constructor
+			pendingException = null;
+			return setException(new PendingException(t), false);
+		}
+		
+		/**
+		 * Builds the "exception" value from a cause chain captured by the
+		 * Throwable constructor, and the culprit unless one was set since.
+		 * Does nothing once it has run.
+		 */
+		void materializeException() {
+			PendingException pending = pendingException;
+			if (pending == null) {
+				return;
+			}
+			pendingException = null;
+			setException(pending, !event.containsKey("culprit"));
+		}
+		
+		/**
+		 * @param setCulprit also set the culprit from the same classification
+		 * of the outermost trace, falling back to its message
+		 */
+		private SentryEventBuilder setException(PendingException pending, boolean setCulprit) {
 			ArrayList<JSONObject> array = new ArrayList<JSONObject>();
+			SentryFrameClassifier classifier = Sentry.getInstance().classifier;
+			int budget = Sentry.getInstance().frameBudget;
+			StackTraceElement[] enclosing = null;
+			int dropped = 0;
 			
-			while(t != null){
+			for (int i = 0; i < pending.traces.length; i++) {
+				StackTraceElement[] elements = pending.traces[i];
+				SentryFrameClassifier.Frames frames = classifier.classify(elements);
+				if (setCulprit) {
+					this.setCulprit(frames.culprit >= 0 ? elements[frames.culprit].toString() : pending.values[i]);
+					setCulprit = false;
+				}
+				SentryStackTraceTrimmer.Kept kept = SentryStackTraceTrimmer.trim(elements, enclosing, budget);
+				dropped += kept.dropped;
+				
 				Map<String, Object> exception = new HashMap<String, Object>();
-				exception.put("type", t.getClass().getName());
-				exception.put("value", t.getMessage());
+				exception.put("type", pending.types[i]);
+				exception.put("value", pending.values[i]);
 				try {
-					exception.put("stacktrace", getStackTrace(t));
+					exception.put("stacktrace", getStackTrace(elements, frames, kept));
 				} catch (JSONException e) { e.printStackTrace(); }
 				array.add(new JSONObject(exception));
-				t = t.getCause();
+				enclosing = elements;
 			}
 			
 			Collections.reverse(array);
 			
 			event.put("exception", new JSONArray(array));
+			if (dropped > 0) {
+				try {
+					getExtra().put("sentry_frames_dropped", dropped);
+				} catch (JSONException e) { e.printStackTrace(); }
+			}
 			
 			return this;
 		}
 		
-		public static JSONObject getStackTrace(Throwable t) throws JSONException {
-			ArrayList<JSONObject> array = new ArrayList<JSONObject>();
-			Collection<String> notInApp = getNotInAppFrames();
+		/**
+		 * A cause chain with its raw stack traces, outermost first. Capturing
+		 * it is cheap; the per-frame JSON is built later on the worker.
+		 */
+		private static final class PendingException implements Serializable {
 			
+			private static final long serialVersionUID = 1L;
+			
+			final String[] types;
+			final String[] values;
+			final StackTraceElement[][] traces;
+			
+			PendingException(Throwable t) {
+				ArrayList<Throwable> chain = new ArrayList<Throwable>();
+				for (; t != null; t = t.getCause()) {
+					chain.add(t);
+				}
+				types = new String[chain.size()];
+				values = new String[chain.size()];
+				traces = new StackTraceElement[chain.size()][];
+				for (int i = 0; i < types.length; i++) {
+					Throwable cause = chain.get(i);
+					types[i] = cause.getClass().getName();
+					values[i] = cause.getMessage();
+					traces[i] = cause.getStackTrace();
+				}
+			}
+		}
+		
+		public static JSONObject getStackTrace(Throwable t) throws JSONException {
 			StackTraceElement[] elements = t.getStackTrace();
-			for (int index = 0; index < elements.length; ++index) {
+			return getStackTrace(elements, Sentry.getInstance().classifier.classify(elements),
+					SentryStackTraceTrimmer.trim(elements, null, Sentry.getInstance().frameBudget));
+		}
+		
+		private static JSONObject getStackTrace(StackTraceElement[] elements, SentryFrameClassifier.Frames frames, SentryStackTraceTrimmer.Kept kept) throws JSONException {
+			ArrayList<JSONObject> array = new ArrayList<JSONObject>(kept.count);
+			
+			for (int i = 0; i < kept.count; ++i) {
+				int index = kept.indices[i];
 				StackTraceElement element = elements[index];
 				JSONObject frame = new JSONObject();
 				// raven-java does not display filename as it will replace module name
@@ -683,13 +1977,7 @@ public class Sentry {
 				frame.put("function", element.getMethodName());
 				frame.put("lineno", element.getLineNumber());
 				
-				boolean inApp = true;
-				for(String notInAppItem : notInApp){
-					if(element.getClassName().startsWith(notInAppItem)){
-						inApp = false;
-					}
-				}
-				frame.put("in_app", inApp);
+				frame.put("in_app", frames.inApp[index]);
 				
 				array.add(frame);
 			}
@@ -713,24 +2001,29 @@ public class Sentry {
 		}
 		
 		// source: net.kencochrane.raven.DefaultRavenFactory
+		private static final Collection<String> NOT_IN_APP_FRAMES = Collections.unmodifiableList(Arrays.asList(
+				"com.sun.",
+				"java.",
+				"javax.",
+				"org.omg.",
+				"sun.",
+				"junit.",
+				// android specific
+				"com.android.",
+				"android.",
+				"com.google.",
+				"libcore.",
+				"dalvik.",
+				"map.",
+				// app specific
+				Sentry.class.getPackage().getName()
+			));
+		
+		/**
+		 * @return the built-in not in_app prefixes, see {@link Sentry#addNotInAppPrefix(String)}
+		 */
 		protected static Collection<String> getNotInAppFrames() {
-			return Arrays.asList(
-					"com.sun.",
-					"java.",
-					"javax.",
-					"org.omg.",
-					"sun.",
-					"junit.",
-					// android specific
-					"com.android.",
-					"android.",
-					"com.google.",
-					"libcore.",
-					"dalvik.",
-					"map.",
-					// app specific
-					Sentry.class.getPackage().getName()
-			);
+			return NOT_IN_APP_FRAMES;
 		}
 		
 	}
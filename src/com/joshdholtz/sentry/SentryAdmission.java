@@ -0,0 +1,166 @@
+package com.joshdholtz.sentry;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Decides whether a captured event is built at all, before any of its JSON
+ * is created.
+ *
+ * An event first passes a per-level sample rate and then a token bucket
+ * keyed by its fingerprint, so a loop that throws the same exception on
+ * every frame only reports the first few of them. Events that are let
+ * through pick up the number dropped since the last report.
+ */
+final class SentryAdmission {
+
+	private static final int MAX_BUCKETS = 256;
+
+	private static final class Bucket {
+		double tokens;
+		long refilledAt;
+	}
+
+	private final Random random = new Random();
+	private final double[] sampleRates = new double[SentryEventLevel.values().length];
+
+	private int burst;
+	private double tokensPerSecond;
+	private final Map<Long, Bucket> buckets = new LinkedHashMap<Long, Bucket>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Bucket> eldest) {
+			return size() > MAX_BUCKETS;
+		}
+	};
+
+	private long sampledOut;
+	private long rateLimited;
+	private long overflowed;
+	private long unreported;
+
+	SentryAdmission() {
+		Arrays.fill(sampleRates, 1.0);
+	}
+
+	/**
+	 * @param rate fraction of events of this level to keep, from 0 to 1
+	 */
+	synchronized void setSampleRate(SentryEventLevel level, double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+		}
+		sampleRates[level.ordinal()] = rate;
+	}
+
+	/**
+	 * @param burst events with the same fingerprint let through back to back, 0 to disable
+	 * @param perSecond rate at which the allowance refills
+	 */
+	synchronized void setRateLimit(int burst, double perSecond) {
+		if (burst < 0 || perSecond < 0) {
+			throw new IllegalArgumentException("Rate limit must not be negative");
+		}
+		this.burst = burst;
+		this.tokensPerSecond = perSecond;
+		buckets.clear();
+	}
+
+	synchronized boolean admit(SentryEventLevel level, long fingerprint) {
+		double rate = sampleRates[level.ordinal()];
+		if (rate < 1 && (rate == 0 || random.nextDouble() >= rate)) {
+			sampledOut++;
+			unreported++;
+			return false;
+		}
+
+		if (burst > 0) {
+			long now = System.currentTimeMillis();
+			Bucket bucket = buckets.get(fingerprint);
+			if (bucket == null) {
+				bucket = new Bucket();
+				bucket.tokens = burst;
+				bucket.refilledAt = now;
+				buckets.put(fingerprint, bucket);
+			} else {
+				bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * tokensPerSecond / 1000.0);
+				bucket.refilledAt = now;
+			}
+			if (bucket.tokens < 1) {
+				rateLimited++;
+				unreported++;
+				return false;
+			}
+			bucket.tokens--;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts an admitted event that was later dropped because the ingest queue was full.
+	 */
+	synchronized void countOverflow() {
+		overflowed++;
+		unreported++;
+	}
+
+	/**
+	 * @return events dropped since the last call
+	 */
+	synchronized long takeUnreported() {
+		long count = unreported;
+		unreported = 0;
+		return count;
+	}
+
+	synchronized long getSampledOutCount() {
+		return sampledOut;
+	}
+
+	synchronized long getRateLimitedCount() {
+		return rateLimited;
+	}
+
+	synchronized long getOverflowCount() {
+		return overflowed;
+	}
+
+	/**
+	 * CRC32 of the exception type and its top in_app frame, hashed the same
+	 * way as the event checksum.
+	 */
+	static long fingerprint(Throwable t, SentryFrameClassifier classifier) {
+		CRC32 crc = new CRC32();
+		update(crc, t.getClass().getName());
+		for (StackTraceElement element : t.getStackTrace()) {
+			if (classifier.isInApp(element.getClassName())) {
+				update(crc, element.getClassName());
+				update(crc, element.getMethodName());
+				break;
+			}
+		}
+		return crc.getValue();
+	}
+
+	static long fingerprint(String message) {
+		CRC32 crc = new CRC32();
+		if (message != null) {
+			update(crc, message);
+		}
+		return crc.getValue();
+	}
+
+	static void update(CRC32 crc, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			crc.update(bytes, 0, bytes.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
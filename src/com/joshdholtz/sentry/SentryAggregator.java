@@ -0,0 +1,164 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+
+/**
+ * Folds repeats of the same handled exception into one event per window.
+ *
+ * The first occurrence is built and held; later ones with the same stack
+ * fingerprint only bump a counter, without building anything. When the
+ * window closes the held event is released carrying the occurrence count
+ * and when the first and last were seen.
+ */
+final class SentryAggregator {
+
+	private static final int MAX_PENDING = 64;
+
+	/**
+	 * Takes an event whose window has closed.
+	 */
+	interface Emitter {
+		void emit(SentryEventBuilder builder);
+	}
+
+	private static final class Pending {
+		final SentryEventBuilder builder;
+		final long firstSeen;
+		long lastSeen;
+		int count = 1;
+
+		Pending(SentryEventBuilder builder, long now) {
+			this.builder = builder;
+			this.firstSeen = now;
+			this.lastSeen = now;
+		}
+	}
+
+	private final SentryFlushScheduler scheduler;
+	private final Emitter emitter;
+	private final Map<Long, Pending> pending = new HashMap<Long, Pending>();
+	private volatile long windowMillis;
+
+	SentryAggregator(SentryFlushScheduler scheduler, Emitter emitter) {
+		this.scheduler = scheduler;
+		this.emitter = emitter;
+	}
+
+	/**
+	 * @param windowMillis how long repeats are folded into the first occurrence, 0 to disable
+	 */
+	void setWindow(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("Aggregation window must not be negative");
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	boolean isEnabled() {
+		return windowMillis > 0;
+	}
+
+	/**
+	 * Counts an occurrence against an open window, if there is one.
+	 * @return true if the occurrence was folded and needs no event of its own
+	 */
+	synchronized boolean fold(long fingerprint) {
+		Pending entry = pending.get(fingerprint);
+		if (entry == null) {
+			return false;
+		}
+		entry.count++;
+		entry.lastSeen = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Holds the event as the first occurrence of a new window. If another
+	 * thread opened the window meanwhile the event is folded into it.
+	 * @return false if too many windows are open and the event should be sent as is
+	 */
+	boolean hold(final long fingerprint, SentryEventBuilder builder) {
+		synchronized (this) {
+			if (fold(fingerprint)) {
+				return true;
+			}
+			if (pending.size() >= MAX_PENDING) {
+				return false;
+			}
+			pending.put(fingerprint, new Pending(builder, System.currentTimeMillis()));
+		}
+
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				Pending entry;
+				synchronized (SentryAggregator.this) {
+					entry = pending.remove(fingerprint);
+				}
+				if (entry != null) {
+					emitter.emit(summarize(entry));
+				}
+			}
+		}, windowMillis);
+		return true;
+	}
+
+	/**
+	 * Closes every open window now, e.g. before the process dies.
+	 * @return the held events, ready to store
+	 */
+	List<SentryEventBuilder> drain() {
+		List<Pending> entries;
+		synchronized (this) {
+			entries = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		List<SentryEventBuilder> builders = new ArrayList<SentryEventBuilder>(entries.size());
+		for (Pending entry : entries) {
+			builders.add(summarize(entry));
+		}
+		return builders;
+	}
+
+	private static SentryEventBuilder summarize(Pending entry) {
+		if (entry.count > 1) {
+			try {
+				JSONObject extra = entry.builder.getExtra();
+				extra.put("sentry_occurrences", entry.count);
+				extra.put("sentry_first_seen", entry.firstSeen / 1000.0);
+				extra.put("sentry_last_seen", entry.lastSeen / 1000.0);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+		}
+		return entry.builder;
+	}
+
+	/**
+	 * CRC32 of the exception type and every in_app frame of it and its
+	 * causes, so the same failure reached along another path is kept apart.
+	 */
+	static long fingerprint(Throwable t, SentryFrameClassifier classifier) {
+		CRC32 crc = new CRC32();
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			SentryAdmission.update(crc, cause.getClass().getName());
+			for (StackTraceElement element : cause.getStackTrace()) {
+				if (classifier.isInApp(element.getClassName())) {
+					SentryAdmission.update(crc, element.getClassName());
+					SentryAdmission.update(crc, element.getMethodName());
+					crc.update(element.getLineNumber());
+				}
+			}
+		}
+		return crc.getValue();
+	}
+}
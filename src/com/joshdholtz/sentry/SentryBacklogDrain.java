@@ -0,0 +1,160 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import android.util.Log;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Sends the stored backlog a few events at a time, most important first.
+ *
+ * Events are ordered by level, FATAL first, and newest first within a
+ * level, so the crash that just happened goes out before older noise. At
+ * most the in-flight limit of them is handed to the dispatcher at once; each
+ * acknowledgement lets the next one in. After a run of failures the drain
+ * gives up and leaves the rest stored for the next one.
+ */
+final class SentryBacklogDrain {
+
+	private static final String TAG = "Sentry";
+
+	/**
+	 * Sends one event, now or when its retry time comes.
+	 */
+	interface Sender {
+		/**
+		 * @return true if the event was handed to the dispatcher now, false if
+		 *         it was scheduled for later or is no longer stored
+		 */
+		boolean send(SentryEventRequest request);
+
+		/**
+		 * Asks the dispatcher not to wait for a fuller batch.
+		 */
+		void flush();
+	}
+
+	private final Sender sender;
+	private final LinkedList<SentryEventRequest> remaining = new LinkedList<SentryEventRequest>();
+	private final Set<UUID> inFlight = new HashSet<UUID>();
+	private int consecutiveFailures;
+
+	private volatile int maxInFlight = 10;
+	private volatile int maxConsecutiveFailures = 3;
+
+	SentryBacklogDrain(Sender sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * @param maxInFlight events handed to the dispatcher and not yet acknowledged
+	 * @param maxConsecutiveFailures failures in a row after which the drain stops
+	 */
+	void setLimits(int maxInFlight, int maxConsecutiveFailures) {
+		if (maxInFlight < 1 || maxConsecutiveFailures < 1) {
+			throw new IllegalArgumentException("Drain limits must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+		this.maxConsecutiveFailures = maxConsecutiveFailures;
+		feed();
+	}
+
+	/**
+	 * Starts draining the given backlog, replacing whatever an earlier
+	 * drain had left, in flight counts included. An event still on its way
+	 * from the earlier drain is not queued twice by the dispatcher, and its
+	 * outcome settles the new drain's slot for it.
+	 *
+	 * @param backlog stored events, oldest first
+	 */
+	void start(List<SentryEventRequest> backlog) {
+		final int size = backlog.size();
+		final SentryEventLevel[] levels = new SentryEventLevel[size];
+		List<Integer> order = new ArrayList<Integer>(size);
+		for (int i = 0; i < size; i++) {
+			levels[i] = backlog.get(i).getLevel();
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int byLevel = levels[a].ordinal() - levels[b].ordinal();
+				return byLevel != 0 ? byLevel : b - a;
+			}
+		});
+
+		synchronized (this) {
+			remaining.clear();
+			// drops slots whose outcome never came, e.g. of a batch abandoned on an error
+			inFlight.clear();
+			for (Integer index : order) {
+				remaining.add(backlog.get(index));
+			}
+			consecutiveFailures = 0;
+		}
+		feed();
+	}
+
+	/**
+	 * Records the outcome of an event. Calls for events the drain did not
+	 * send are ignored.
+	 *
+	 * @param delivered true if the server took the event, or rejected it for good
+	 */
+	void settle(SentryEventRequest request, boolean delivered) {
+		synchronized (this) {
+			if (!inFlight.remove(request.getUuid())) {
+				return;
+			}
+			if (delivered) {
+				consecutiveFailures = 0;
+			} else if (++consecutiveFailures >= maxConsecutiveFailures && !remaining.isEmpty()) {
+				Log.e(TAG, "Backlog drain stopped after " + consecutiveFailures + " failures, "
+						+ remaining.size() + " events left for later");
+				remaining.clear();
+			}
+		}
+		feed();
+	}
+
+	synchronized int remainingCount() {
+		return remaining.size();
+	}
+
+	/**
+	 * Hands events to the sender until the in-flight limit is reached.
+	 */
+	private void feed() {
+		boolean sent = false;
+		while (true) {
+			SentryEventRequest request;
+			synchronized (this) {
+				if (inFlight.size() >= maxInFlight || remaining.isEmpty()) {
+					break;
+				}
+				request = remaining.removeFirst();
+				inFlight.add(request.getUuid());
+			}
+			if (sender.send(request)) {
+				sent = true;
+			} else {
+				// scheduled for its retry time, which the drain does not wait for, or already gone
+				synchronized (this) {
+					inFlight.remove(request.getUuid());
+				}
+			}
+		}
+		if (sent) {
+			sender.flush();
+		}
+	}
+}
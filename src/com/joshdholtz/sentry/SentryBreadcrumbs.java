@@ -0,0 +1,113 @@
+package com.joshdholtz.sentry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fixed-capacity ring of the most recent breadcrumbs, written without locks
+ * or allocation so it can be fed from UI and network code at a high rate.
+ *
+ * Each writer claims a sequence number and fills the slot it maps to. A slot
+ * carries the sequence of the breadcrumb in it, cleared while the slot is
+ * being written, so a snapshot taken concurrently skips slots that are
+ * half-written or were overwritten while it read them.
+ */
+final class SentryBreadcrumbs {
+
+	private static final long WRITING = -1;
+
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray timestamps;
+	private final AtomicLongArray values;
+	private final AtomicReferenceArray<String> categories;
+	private final AtomicReferenceArray<String> messages;
+
+	/**
+	 * @param capacity breadcrumbs kept, rounded up to a power of two
+	 */
+	SentryBreadcrumbs(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.timestamps = new AtomicLongArray(size);
+		this.values = new AtomicLongArray(size);
+		this.categories = new AtomicReferenceArray<String>(size);
+		this.messages = new AtomicReferenceArray<String>(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, WRITING);
+		}
+	}
+
+	/**
+	 * Records a breadcrumb, overwriting the oldest one once the ring is full.
+	 * Pass constant strings to keep this allocation free.
+	 */
+	void record(String category, String message, long value) {
+		long sequence = next.getAndIncrement();
+		int slot = (int) sequence & mask;
+		sequences.set(slot, WRITING);
+		timestamps.set(slot, System.currentTimeMillis());
+		values.set(slot, value);
+		categories.set(slot, category);
+		messages.set(slot, message);
+		sequences.set(slot, sequence);
+	}
+
+	/**
+	 * @return the breadcrumbs in the ring, oldest first, in the Sentry
+	 *         breadcrumbs interface format
+	 */
+	JSONObject snapshot() {
+		long end = next.get();
+		long start = Math.max(0, end - (mask + 1));
+
+		JSONArray array = new JSONArray();
+		for (long sequence = start; sequence < end; sequence++) {
+			int slot = (int) sequence & mask;
+			if (sequences.get(slot) != sequence) {
+				continue;
+			}
+			long timestamp = timestamps.get(slot);
+			long value = values.get(slot);
+			String category = categories.get(slot);
+			String message = messages.get(slot);
+			if (sequences.get(slot) != sequence) {
+				continue;
+			}
+
+			try {
+				JSONObject crumb = new JSONObject();
+				crumb.put("timestamp", timestamp / 1000.0);
+				crumb.put("category", category);
+				crumb.put("message", message);
+				if (value != 0) {
+					JSONObject data = new JSONObject();
+					data.put("value", value);
+					crumb.put("data", data);
+				}
+				array.put(crumb);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+		}
+
+		JSONObject breadcrumbs = new JSONObject();
+		try {
+			breadcrumbs.put("values", array);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return breadcrumbs;
+	}
+
+	boolean isEmpty() {
+		return next.get() == 0;
+	}
+}
@@ -0,0 +1,103 @@
+package com.joshdholtz.sentry;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+/**
+ * Caches whether the device is online, on a metered network and charging,
+ * and keeps it up to date from system broadcasts, so the send path reads
+ * two volatile fields instead of querying system services per event.
+ */
+final class SentryConnectivity extends BroadcastReceiver {
+
+	/**
+	 * Told when the device comes back online, moves to an unmetered
+	 * network or is plugged in.
+	 */
+	interface Listener {
+		void onConnectivityGained();
+	}
+
+	private final Listener listener;
+
+	private volatile boolean monitored;
+	private volatile boolean connected = true;
+	private volatile boolean metered;
+	private volatile boolean charging;
+
+	SentryConnectivity(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads the current state and starts listening for changes. Without the
+	 * ACCESS_NETWORK_STATE permission the device is always taken to be online.
+	 */
+	synchronized void register(Context context) {
+		if (monitored) {
+			return;
+		}
+		Context app = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+
+		IntentFilter power = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+		power.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		app.registerReceiver(this, power);
+		Intent battery = app.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+		int permission = app.getPackageManager().checkPermission(android.Manifest.permission.ACCESS_NETWORK_STATE, app.getPackageName());
+		if (permission != PackageManager.PERMISSION_DENIED) {
+			refresh(app);
+			app.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		}
+		monitored = true;
+	}
+
+	boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return true unless the active network is known to be Wi-Fi
+	 */
+	boolean isMetered() {
+		return metered;
+	}
+
+	boolean isCharging() {
+		return charging;
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		boolean wasConnected = connected;
+		boolean wasMetered = metered;
+		boolean wasCharging = charging;
+		String action = intent.getAction();
+		if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+			charging = true;
+		} else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+			charging = false;
+		} else {
+			refresh(context);
+		}
+
+		// cellular to Wi-Fi may arrive as a single broadcast with no disconnect in between
+		if (connected && (!wasConnected || (wasMetered && !metered) || (charging && !wasCharging))) {
+			listener.onConnectivityGained();
+		}
+	}
+
+	private void refresh(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
+		connected = activeNetworkInfo != null && activeNetworkInfo.isConnected();
+		metered = activeNetworkInfo == null || activeNetworkInfo.getType() != ConnectivityManager.TYPE_WIFI;
+	}
+}
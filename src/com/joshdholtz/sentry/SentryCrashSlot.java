@@ -0,0 +1,183 @@
+package com.joshdholtz.sentry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A preallocated, memory-mapped file that holds the event of at most one
+ * fatal crash until the next start.
+ *
+ * Writing a crash touches nothing but the mapping set up at init: no file
+ * is opened, the unsent backlog is not read and the JSON is encoded to
+ * UTF-8 straight into the mapped pages. The slot is laid out as
+ *
+ * <pre>
+ * magic:4 | state:4 | length:4 | crc32:4 | payload:length
+ * </pre>
+ *
+ * and the state is flipped to WRITTEN only after the payload and its CRC are
+ * in place, so a crash during the write leaves the slot empty rather than
+ * corrupt.
+ */
+final class SentryCrashSlot {
+
+	private static final String TAG = "Sentry";
+
+	private static final int MAGIC = 0x53435253;
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_WRITTEN = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int OFFSET_STATE = 4;
+	private static final int OFFSET_LENGTH = 8;
+	private static final int OFFSET_CRC = 12;
+
+	private final MappedByteBuffer buffer;
+	private final CRC32 crc = new CRC32();
+	private final int capacity;
+
+	private SentryCrashSlot(MappedByteBuffer buffer, int capacity) {
+		this.buffer = buffer;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Creates the slot file at its full size if needed and maps it.
+	 */
+	static SentryCrashSlot open(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != size) {
+				raf.setLength(size);
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (buffer.getInt(0) != MAGIC) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(OFFSET_STATE, STATE_EMPTY);
+				buffer.force();
+			}
+			return new SentryCrashSlot(buffer, size - HEADER_SIZE);
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encodes the event into the slot, replacing any crash already there.
+	 *
+	 * @return false if the event does not fit
+	 */
+	synchronized boolean write(String json) {
+		buffer.putInt(OFFSET_STATE, STATE_EMPTY);
+		crc.reset();
+
+		int pos = HEADER_SIZE;
+		int limit = HEADER_SIZE + capacity;
+		for (int i = 0, length = json.length(); i < length; i++) {
+			int c = json.charAt(i);
+			if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(json.charAt(i + 1))) {
+				c = Character.toCodePoint((char) c, json.charAt(++i));
+			}
+
+			if (c < 0x80) {
+				if (pos + 1 > limit) {
+					return false;
+				}
+				pos = put(pos, c);
+			} else if (c < 0x800) {
+				if (pos + 2 > limit) {
+					return false;
+				}
+				pos = put(pos, 0xC0 | (c >> 6));
+				pos = put(pos, 0x80 | (c & 0x3F));
+			} else if (c < 0x10000) {
+				if (pos + 3 > limit) {
+					return false;
+				}
+				pos = put(pos, 0xE0 | (c >> 12));
+				pos = put(pos, 0x80 | ((c >> 6) & 0x3F));
+				pos = put(pos, 0x80 | (c & 0x3F));
+			} else {
+				if (pos + 4 > limit) {
+					return false;
+				}
+				pos = put(pos, 0xF0 | (c >> 18));
+				pos = put(pos, 0x80 | ((c >> 12) & 0x3F));
+				pos = put(pos, 0x80 | ((c >> 6) & 0x3F));
+				pos = put(pos, 0x80 | (c & 0x3F));
+			}
+		}
+
+		buffer.putInt(OFFSET_LENGTH, pos - HEADER_SIZE);
+		buffer.putInt(OFFSET_CRC, (int) crc.getValue());
+		buffer.force();
+		buffer.putInt(OFFSET_STATE, STATE_WRITTEN);
+		buffer.force();
+		return true;
+	}
+
+	/**
+	 * @return true if the slot holds no crash
+	 */
+	synchronized boolean isEmpty() {
+		return buffer.getInt(OFFSET_STATE) != STATE_WRITTEN;
+	}
+
+	/**
+	 * Reads the crash left by a previous run, if any. The slot keeps it
+	 * until {@link #clear()}, so a crash is not lost if storing it fails.
+	 * A corrupt slot is emptied.
+	 *
+	 * @return the event JSON, or null if the slot is empty or corrupt
+	 */
+	synchronized String read() {
+		if (buffer.getInt(OFFSET_STATE) != STATE_WRITTEN) {
+			return null;
+		}
+
+		int length = buffer.getInt(OFFSET_LENGTH);
+		if (length > 0 && length <= capacity) {
+			byte[] payload = new byte[length];
+			for (int i = 0; i < length; i++) {
+				payload[i] = buffer.get(HEADER_SIZE + i);
+			}
+			CRC32 check = new CRC32();
+			check.update(payload, 0, length);
+			if ((int) check.getValue() == buffer.getInt(OFFSET_CRC)) {
+				return decode(payload);
+			}
+			Log.e(TAG, "Discarding corrupt crash slot");
+		}
+		clear();
+		return null;
+	}
+
+	/**
+	 * Empties the slot once its crash is stored elsewhere.
+	 */
+	synchronized void clear() {
+		buffer.putInt(OFFSET_STATE, STATE_EMPTY);
+		buffer.force();
+	}
+
+	private int put(int pos, int b) {
+		buffer.put(pos, (byte) b);
+		crc.update(b);
+		return pos + 1;
+	}
+
+	private static String decode(byte[] data) {
+		try {
+			return new String(data, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.joshdholtz.sentry;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+/**
+ * Tags describing the device and app, gathered once and kept as a
+ * pre-serialized fragment, so each event splices in the same bytes instead
+ * of querying Build and copying the tag map again.
+ *
+ * The tags known without asking system services are there from init; the
+ * app version and memory class are added by {@link #collect(Context)} off
+ * the main thread.
+ */
+final class SentryDeviceContext {
+
+	/**
+	 * The Build fields sent with every event. They never change while the process runs.
+	 */
+	static final Map<String, String> DEVICE_TAGS;
+	static {
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("device", Build.DEVICE);
+		tags.put("device_name", Build.MODEL);
+		tags.put("device_brand", Build.BRAND);
+		tags.put("android_version", String.valueOf(Build.VERSION.SDK_INT));
+		tags.put("android_version_name", Build.VERSION.RELEASE);
+		DEVICE_TAGS = Collections.unmodifiableMap(tags);
+	}
+
+	private final LinkedHashMap<String, String> tags = new LinkedHashMap<String, String>();
+	private SentryEventWriter.Limits limits;
+	private SentryScrubber scrubber;
+	private volatile SentryJsonFragment fragment;
+
+	/**
+	 * @param userTags tags passed to init, copied now
+	 * @param limits the tag count and length limits the fragment is cut to
+	 * @param scrubber the rules the fragment is scrubbed with
+	 */
+	SentryDeviceContext(Map<String, String> userTags, SentryEventWriter.Limits limits, SentryScrubber scrubber) {
+		if (userTags != null) {
+			tags.putAll(userTags);
+		}
+		tags.putAll(DEVICE_TAGS);
+		tags.put("locale", Locale.getDefault().toString());
+		this.limits = limits;
+		this.scrubber = scrubber;
+		rebuild();
+	}
+
+	/**
+	 * Rebuilds the fragment for new payload limits, since the writer copies it as it is.
+	 */
+	synchronized void setLimits(SentryEventWriter.Limits limits) {
+		this.limits = limits;
+		rebuild();
+	}
+
+	/**
+	 * Rebuilds the fragment for new scrub rules, since the writer copies it as it is.
+	 */
+	synchronized void setScrubber(SentryScrubber scrubber) {
+		this.scrubber = scrubber;
+		rebuild();
+	}
+
+	/**
+	 * Adds the tags that take a PackageManager or ActivityManager call.
+	 */
+	synchronized void collect(Context context) {
+		try {
+			PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+			putIfAbsent("app_version", info.versionName);
+			putIfAbsent("app_version_code", String.valueOf(info.versionCode));
+		} catch (PackageManager.NameNotFoundException e) {
+			// not installed as a package, e.g. in a test runner
+		}
+
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (activityManager != null) {
+			tags.put("memory_class", String.valueOf(activityManager.getMemoryClass()));
+		}
+
+		rebuild();
+	}
+
+	/**
+	 * Adds or replaces a tag sent with every event. The fragment is rebuilt
+	 * once here, not per event.
+	 */
+	synchronized void put(String key, String value) {
+		if (value == null) {
+			tags.remove(key);
+		} else {
+			tags.put(key, value);
+		}
+		rebuild();
+	}
+
+	SentryJsonFragment fragment() {
+		return fragment;
+	}
+
+	private void rebuild() {
+		fragment = new SentryJsonFragment(SentryEventWriter.writeTags(tags, limits, scrubber));
+	}
+
+	private void putIfAbsent(String key, String value) {
+		if (value != null && !tags.containsKey(key)) {
+			tags.put(key, value);
+		}
+	}
+}
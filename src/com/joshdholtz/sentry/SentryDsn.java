@@ -0,0 +1,50 @@
+package com.joshdholtz.sentry;
+
+import android.net.Uri;
+
+/**
+ * A DSN parsed once into everything the send path needs: the store URL and
+ * the fixed parts of the X-Sentry-Auth header around its timestamp.
+ */
+final class SentryDsn {
+
+	final String storeUrl;
+	final String projectId;
+	final String publicKey;
+	final String secretKey;
+
+	private final String authPrefix;
+	private final String authSuffix;
+
+	private SentryDsn(String baseUrl, String projectId, String publicKey, String secretKey, String clientVersion) {
+		this.storeUrl = baseUrl + "/api/" + projectId + "/store/";
+		this.projectId = projectId;
+		this.publicKey = publicKey;
+		this.secretKey = secretKey;
+		this.authPrefix = "Sentry sentry_version=4,sentry_client=sentry-android/" + clientVersion + ",sentry_timestamp=";
+		this.authSuffix = ",sentry_key=" + publicKey + ",sentry_secret=" + secretKey;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the DSN has no keys or project
+	 */
+	static SentryDsn parse(String baseUrl, String dsn, String clientVersion) {
+		Uri uri = Uri.parse(dsn);
+		String authority = uri.getAuthority();
+		String path = uri.getPath();
+		if (authority == null || path == null) {
+			throw new IllegalArgumentException("Invalid DSN " + dsn);
+		}
+
+		String[] authorityParts = authority.replace("@" + uri.getHost(), "").split(":");
+		if (authorityParts.length < 2) {
+			throw new IllegalArgumentException("DSN has no public and secret key");
+		}
+		String projectId = path.substring(path.lastIndexOf("/") + 1);
+		return new SentryDsn(baseUrl, projectId, authorityParts[0], authorityParts[1], clientVersion);
+	}
+
+	String authHeader(long timestamp) {
+		return authPrefix + timestamp + authSuffix;
+	}
+}
@@ -0,0 +1,295 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import android.util.Log;
+
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Collects events between capture and the network and uploads them in
+ * batches, so a burst of events reuses kept-alive connections instead of
+ * opening a call per event.
+ *
+ * A batch is sent once it reaches the configured count or byte size, or
+ * once its oldest event has lingered for the configured time. Nothing is
+ * sent while the dispatcher is paused by a backoff gate.
+ *
+ * Each batch goes out back to back on one sender thread, and up to the
+ * configured number of senders run at once, each with its own batch. The
+ * sustainable rate is therefore about senders / round trip time: 4
+ * senders at a 50 ms round trip deliver some 80 events a second. Faster
+ * bursts wait in the stored queue, which should hold a burst's worth of
+ * events for the gap to be made up instead of evicted.
+ */
+final class SentryEventDispatcher {
+
+	private static final String TAG = "Sentry";
+
+	static final int DEFAULT_SENDERS = 4;
+
+	/**
+	 * Receives the outcome of every event handed to the dispatcher.
+	 */
+	interface Acknowledger {
+		/**
+		 * @return false to stop the batch, the rest of it goes to {@link #onDeferred}
+		 */
+		boolean onResponse(SentryEventRequest request, SentryTransport.Response response);
+		/**
+		 * The rest of the batch goes to {@link #onDeferred}.
+		 */
+		void onFailed(SentryEventRequest request, IOException error);
+		/**
+		 * Called for events of a stopped batch that were never attempted.
+		 */
+		void onDeferred(SentryEventRequest request);
+	}
+
+	private final SentryTransport sender;
+	private final Acknowledger acknowledger;
+
+	private final Object lock = new Object();
+	private final LinkedList<SentryEventRequest> pending = new LinkedList<SentryEventRequest>();
+	private final Set<UUID> queued = new HashSet<UUID>();
+	private long pendingBytes;
+	private long oldestEnqueuedAt;
+	private boolean flushRequested;
+	private long pausedUntil;
+
+	private volatile int maxBatchCount = 20;
+	private volatile long maxBatchBytes = 256 * 1024;
+	private volatile long maxLingerMillis = 2000;
+	private volatile int maxSenders = DEFAULT_SENDERS;
+
+	// indexed by sender slot, a slot at or past maxSenders lets its thread exit
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	SentryEventDispatcher(SentryTransport sender, Acknowledger acknowledger) {
+		this.sender = sender;
+		this.acknowledger = acknowledger;
+	}
+
+	/**
+	 * @param maxCount events per batch
+	 * @param maxBytes request data bytes per batch
+	 * @param lingerMillis longest time an event waits for its batch to fill
+	 */
+	void setBatchLimits(int maxCount, long maxBytes, long lingerMillis) {
+		if (maxCount < 1 || maxBytes < 1 || lingerMillis < 0) {
+			throw new IllegalArgumentException("Batch limits must be positive");
+		}
+		this.maxBatchCount = maxCount;
+		this.maxBatchBytes = maxBytes;
+		this.maxLingerMillis = lingerMillis;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @param senders how many batches may be uploading at the same time
+	 */
+	void setMaxSenders(int senders) {
+		if (senders < 1) {
+			throw new IllegalArgumentException("At least one sender is needed");
+		}
+		synchronized (lock) {
+			this.maxSenders = senders;
+			if (!pending.isEmpty()) {
+				ensureWorkers();
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Queues the request for the next batch. A request that is already
+	 * waiting, or being sent, is not queued twice.
+	 */
+	void enqueue(SentryEventRequest request) {
+		synchronized (lock) {
+			if (!queued.add(request.getUuid())) {
+				return;
+			}
+			if (pending.isEmpty()) {
+				oldestEnqueuedAt = System.currentTimeMillis();
+			}
+			pending.add(request);
+			pendingBytes += request.getRequestData().length();
+			ensureWorkers();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Holds every batch back until the given time.
+	 */
+	void pauseUntil(long untilMillis) {
+		synchronized (lock) {
+			if (untilMillis > pausedUntil) {
+				pausedUntil = untilMillis;
+			}
+		}
+	}
+
+	/**
+	 * Sends whatever is pending without waiting for the linger time.
+	 */
+	void flush() {
+		synchronized (lock) {
+			flushRequested = true;
+			lock.notifyAll();
+		}
+	}
+
+	int pendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	private void ensureWorkers() {
+		for (int i = 0; i < maxSenders; i++) {
+			if (i == workers.size()) {
+				workers.add(null);
+			}
+			Thread worker = workers.get(i);
+			if (worker != null && worker.isAlive()) {
+				continue;
+			}
+			final int slot = i;
+			worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop(slot);
+				}
+			}, "Sentry-Dispatcher-" + (slot + 1));
+			worker.setDaemon(true);
+			workers.set(i, worker);
+			worker.start();
+		}
+	}
+
+	private void loop(int slot) {
+		while (true) {
+			List<SentryEventRequest> batch;
+			try {
+				batch = nextBatch(slot);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch == null) {
+				return;
+			}
+			try {
+				send(batch);
+			} catch (RuntimeException e) {
+				// the events stay stored and go out with the next drain
+				Log.e(TAG, "SendEvent - batch abandoned", e);
+				for (SentryEventRequest request : batch) {
+					release(request);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Blocks until a batch is ready and removes it from the pending queue.
+	 * @return null once the sender slot is no longer wanted
+	 */
+	private List<SentryEventRequest> nextBatch(int slot) throws InterruptedException {
+		synchronized (lock) {
+			while (true) {
+				if (slot >= maxSenders) {
+					return null;
+				}
+				long paused = pausedUntil - System.currentTimeMillis();
+				if (paused > 0) {
+					lock.wait(paused);
+				} else if (!pending.isEmpty()) {
+					long waited = System.currentTimeMillis() - oldestEnqueuedAt;
+					if (flushRequested || pending.size() >= maxBatchCount || pendingBytes >= maxBatchBytes || waited >= maxLingerMillis) {
+						break;
+					}
+					lock.wait(maxLingerMillis - waited);
+				} else {
+					flushRequested = false;
+					lock.wait();
+				}
+			}
+
+			List<SentryEventRequest> batch = new ArrayList<SentryEventRequest>(Math.min(pending.size(), maxBatchCount));
+			long bytes = 0;
+			while (!pending.isEmpty() && batch.size() < maxBatchCount && (batch.isEmpty() || bytes < maxBatchBytes)) {
+				SentryEventRequest request = pending.removeFirst();
+				int size = request.getRequestData().length();
+				bytes += size;
+				pendingBytes -= size;
+				batch.add(request);
+			}
+
+			if (pending.isEmpty()) {
+				flushRequested = false;
+			} else {
+				oldestEnqueuedAt = System.currentTimeMillis();
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Sends the batch back to back. The first transport failure stops the
+	 * batch, since the rest would almost certainly fail the same way. A
+	 * transport that throws a RuntimeException, such as OkHttp rejecting a
+	 * malformed URL, counts as a failure too.
+	 */
+	private void send(List<SentryEventRequest> batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			SentryEventRequest request = batch.get(i);
+			SentryTransport.Response response = null;
+			IOException error = null;
+			try {
+				response = sender.send(request);
+			} catch (IOException e) {
+				Log.e(TAG, "SendEvent - fail, " + (batch.size() - i) + " events left for later", e);
+				error = e;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "SendEvent - transport error, " + (batch.size() - i) + " events left for later", e);
+				error = new IOException(e.toString());
+				error.initCause(e);
+			}
+			release(request);
+
+			boolean proceed;
+			if (error == null) {
+				proceed = acknowledger.onResponse(request, response);
+			} else {
+				acknowledger.onFailed(request, error);
+				proceed = false;
+			}
+			if (!proceed) {
+				for (int j = i + 1; j < batch.size(); j++) {
+					release(batch.get(j));
+					acknowledger.onDeferred(batch.get(j));
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Lets the request be queued again once its attempt is over.
+	 */
+	private void release(SentryEventRequest request) {
+		synchronized (lock) {
+			queued.remove(request.getUuid());
+		}
+	}
+}
@@ -0,0 +1,554 @@
+package com.joshdholtz.sentry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.os.Debug;
+
+/**
+ * Writes an event map straight to JSON text in a buffer that is reused by
+ * every event serialized on the same thread, instead of copying the map
+ * into a fresh JSONObject graph first.
+ *
+ * The output matches {@code new JSONObject(event).toString()} byte for byte:
+ * keys come out in the map's own iteration order, strings are escaped the
+ * way JSONStringer escapes them and numbers are formatted like
+ * JSONObject.numberToString.
+ *
+ * Given {@link Limits}, the writer also keeps the event within a size
+ * budget as it goes: long strings are cut short with a marker, and once the
+ * event is nearly full the remaining entries of every object and array are
+ * left out. Sizes are counted in characters of JSON text, so nothing is
+ * encoded to measure them and an oversized value is never copied whole.
+ * The fields every event needs are written first and the exception,
+ * breadcrumbs and extra last, so a full event loses those first; the number
+ * of entries left out is reported in extra.sentry_truncated.
+ *
+ * Given a {@link SentryScrubber}, values under denied keys and matches of
+ * the value patterns are written as "[Filtered]" instead. Pre-serialized
+ * fragments are copied as they are, so they are limited and scrubbed when
+ * built, see {@link #writeTags(Map, Limits, SentryScrubber)}.
+ */
+final class SentryEventWriter {
+
+	private static final int INITIAL_CAPACITY = 4 * 1024;
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String TRUNCATED = "...";
+	private static final String TRUNCATED_ENTRIES = "sentry_truncated";
+	private static final Double NEGATIVE_ZERO = -0d;
+	// written first, so no budget cuts them; the message last as the only long one
+	private static final String[] REQUIRED = { "event_id", "level", "timestamp", "platform", "logger", "message" };
+	// written last, the first to go when the event fills up
+	private static final String[] EXPENDABLE = { "exception", "breadcrumbs" };
+	private static final String EXTRA = "extra";
+	// protocol fields the server parses, never scrubbed so a rule can't make the event invalid
+	private static final String[] PROTOCOL = { "event_id", "level", "timestamp", "platform", "logger", "checksum" };
+	// room kept for closing brackets and markers once the event is full
+	private static final int RESERVED = 256;
+
+	/**
+	 * Size budgets for one event, in characters of JSON text.
+	 */
+	static final class Limits {
+		static final Limits NONE = new Limits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+		final int maxEventLength;
+		final int maxStringLength;
+		final int maxTagCount;
+		final int maxTagLength;
+
+		/**
+		 * @param maxEventLength the whole event
+		 * @param maxStringLength any single string value
+		 * @param maxTagCount entries in tags
+		 * @param maxTagLength a single tag value
+		 */
+		Limits(int maxEventLength, int maxStringLength, int maxTagCount, int maxTagLength) {
+			if (maxEventLength <= RESERVED || maxStringLength < 1 || maxTagCount < 1 || maxTagLength < 1) {
+				throw new IllegalArgumentException("Invalid payload limits");
+			}
+			this.maxEventLength = maxEventLength;
+			this.maxStringLength = maxStringLength;
+			this.maxTagCount = maxTagCount;
+			this.maxTagLength = maxTagLength;
+		}
+	}
+
+	private static final ThreadLocal<SentryEventWriter> LOCAL = new ThreadLocal<SentryEventWriter>() {
+		@Override
+		protected SentryEventWriter initialValue() {
+			return new SentryEventWriter();
+		}
+	};
+
+	private StringBuilder out = new StringBuilder(INITIAL_CAPACITY);
+	private Limits limits = Limits.NONE;
+	private SentryScrubber scrubber = SentryScrubber.NONE;
+	private SentryScrubber matcherScrubber = SentryScrubber.NONE;
+	private Matcher[] matchers;
+	// where to stop adding entries, and the limits of the object being written
+	private int full;
+	private int stringLimit;
+	private int entryLimit;
+	// entries and items left out of the event so far
+	private int omitted;
+
+	private SentryEventWriter() {
+
+	}
+
+	/**
+	 * @return the JSON text of the event
+	 */
+	static String write(Map<String, Object> event) {
+		return write(event, Limits.NONE);
+	}
+
+	/**
+	 * @return the JSON text of the event, cut down to the limits
+	 */
+	static String write(Map<String, Object> event, Limits limits) {
+		return write(event, limits, SentryScrubber.NONE);
+	}
+
+	/**
+	 * @return the JSON text of the event, cut down to the limits and scrubbed
+	 */
+	static String write(Map<String, Object> event, Limits limits, SentryScrubber scrubber) {
+		SentryEventWriter writer = begin(limits, scrubber);
+		writer.writeEvent(event);
+		return writer.finish();
+	}
+
+	/**
+	 * @return the JSON text of a tags object, cut down to the tag limits and scrubbed
+	 */
+	@SuppressWarnings("unchecked")
+	static String writeTags(Map<String, ?> tags, Limits limits, SentryScrubber scrubber) {
+		SentryEventWriter writer = begin(limits, scrubber);
+		writer.stringLimit = limits.maxTagLength;
+		writer.entryLimit = limits.maxTagCount;
+		writer.writeMap((Map<String, Object>) tags);
+		return writer.finish();
+	}
+
+	private static SentryEventWriter begin(Limits limits, SentryScrubber scrubber) {
+		SentryEventWriter writer = LOCAL.get();
+		writer.out.setLength(0);
+		writer.limits = limits;
+		writer.scrubber = scrubber;
+		if (writer.matcherScrubber != scrubber) {
+			writer.matcherScrubber = scrubber;
+			writer.matchers = scrubber.newMatchers();
+		}
+		writer.full = limits.maxEventLength == Integer.MAX_VALUE ? Integer.MAX_VALUE : limits.maxEventLength - RESERVED;
+		writer.stringLimit = limits.maxStringLength;
+		writer.entryLimit = Integer.MAX_VALUE;
+		writer.omitted = 0;
+		return writer;
+	}
+
+	private String finish() {
+		if (matchers != null) {
+			// let go of the last string matched
+			for (Matcher matcher : matchers) {
+				matcher.reset("");
+			}
+		}
+		String json = out.toString();
+		// don't pin the buffer of one huge event for the life of the thread
+		if (out.capacity() > MAX_RETAINED_CAPACITY) {
+			out = new StringBuilder(INITIAL_CAPACITY);
+		}
+		return json;
+	}
+
+	/**
+	 * Serializes the event both the old way and through this writer and
+	 * counts the objects each allocates on the calling thread.
+	 *
+	 * @return allocation counts, {JSONObject, writer}
+	 * @throws IllegalStateException if the two outputs differ
+	 */
+	static int[] measureAllocations(Map<String, Object> event) {
+		// warm up the thread local buffer so it isn't counted
+		write(event);
+
+		// JSONObject knows nothing of pre-serialized fragments
+		Map<String, Object> expanded = new HashMap<String, Object>(event);
+		for (Map.Entry<String, Object> entry : expanded.entrySet()) {
+			if (entry.getValue() instanceof SentryJsonFragment) {
+				entry.setValue(((SentryJsonFragment) entry.getValue()).toJSONObject());
+			}
+		}
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			String legacy = new JSONObject(expanded).toString();
+			int legacyCount = Debug.getThreadAllocCount();
+
+			Debug.resetThreadAllocCount();
+			String streamed = write(expanded);
+			int streamedCount = Debug.getThreadAllocCount();
+
+			if (!legacy.equals(streamed)) {
+				throw new IllegalStateException("Writer output differs from JSONObject output");
+			}
+			return new int[] { legacyCount, streamedCount };
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeValue(Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			out.append("null");
+		} else if (value instanceof String) {
+			writeString(mask((String) value));
+		} else if (value instanceof Boolean) {
+			out.append(((Boolean) value).booleanValue());
+		} else if (value instanceof Number) {
+			writeNumber((Number) value);
+		} else if (value instanceof SentryJsonFragment) {
+			out.append(((SentryJsonFragment) value).json);
+		} else if (value instanceof JSONObject) {
+			writeObject((JSONObject) value);
+		} else if (value instanceof JSONArray) {
+			writeArray((JSONArray) value);
+		} else if (value instanceof Map) {
+			writeMap((Map<String, Object>) value);
+		} else if (value instanceof Collection) {
+			writeCollection((Collection<Object>) value);
+		} else {
+			writeString(value.toString());
+		}
+	}
+
+	/**
+	 * Writes the top level of the event, where tags get their own limits.
+	 * Without limits the entries keep the map's order.
+	 */
+	private void writeEvent(Map<String, Object> event) {
+		out.append('{');
+		int written = 0;
+		if (limits == Limits.NONE) {
+			for (Map.Entry<String, Object> entry : event.entrySet()) {
+				writeEventEntry(written++, entry.getKey(), entry.getValue());
+			}
+			out.append('}');
+			return;
+		}
+
+		for (String key : REQUIRED) {
+			if (event.containsKey(key)) {
+				writeEventEntry(written++, key, event.get(key));
+			}
+		}
+		for (Map.Entry<String, Object> entry : event.entrySet()) {
+			String key = entry.getKey();
+			if (isRequired(key) || isExpendable(key) || EXTRA.equals(key)) {
+				continue;
+			}
+			if (out.length() >= full) {
+				omitted++;
+			} else {
+				writeEventEntry(written++, key, entry.getValue());
+			}
+		}
+		for (String key : EXPENDABLE) {
+			if (!event.containsKey(key)) {
+				continue;
+			}
+			if (out.length() >= full) {
+				omitted++;
+			} else {
+				writeEventEntry(written++, key, event.get(key));
+			}
+		}
+		writeExtra(written, event.get(EXTRA));
+		out.append('}');
+	}
+
+	private void writeEventEntry(int written, String key, Object value) {
+		if (written > 0) {
+			out.append(',');
+		}
+		writeKey(key);
+		out.append(':');
+		if ("tags".equals(key)) {
+			stringLimit = limits.maxTagLength;
+			entryLimit = limits.maxTagCount;
+			writeEntryValue(key, value);
+			stringLimit = limits.maxStringLength;
+			entryLimit = Integer.MAX_VALUE;
+		} else if (value instanceof String && isProtocol(key)) {
+			writeString((String) value);
+		} else {
+			writeEntryValue(key, value);
+		}
+	}
+
+	/**
+	 * Writes extra, the last entry of a limited event, followed by the
+	 * number of entries left out of the event if there are any.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeExtra(int written, Object extra) {
+		if (extra == null && omitted == 0) {
+			return;
+		}
+		if (written > 0) {
+			out.append(',');
+		}
+		writeKey(EXTRA);
+		out.append(':');
+		if (scrubber.isDenied(EXTRA)) {
+			writeString(SentryScrubber.FILTERED);
+		} else if (extra instanceof JSONObject) {
+			writeObject((JSONObject) extra, true);
+		} else if (extra instanceof Map) {
+			writeMap((Map<String, Object>) extra, true);
+		} else if (extra == null) {
+			out.append('{');
+			writeOmitted(0);
+			out.append('}');
+		} else {
+			writeValue(extra);
+		}
+	}
+
+	private void writeMap(Map<String, Object> map) {
+		writeMap(map, false);
+	}
+
+	/**
+	 * @param report end the object with the number of entries left out of the event
+	 */
+	private void writeMap(Map<String, Object> map, boolean report) {
+		int entries = entryLimit;
+		entryLimit = Integer.MAX_VALUE;
+		out.append('{');
+		int written = 0;
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			if (written == entries || out.length() >= full) {
+				omitted += map.size() - written;
+				break;
+			}
+			if (written++ > 0) {
+				out.append(',');
+			}
+			writeKey(entry.getKey());
+			out.append(':');
+			writeEntryValue(entry.getKey(), entry.getValue());
+		}
+		if (report && omitted > 0) {
+			writeOmitted(written);
+		}
+		out.append('}');
+		entryLimit = entries;
+	}
+
+	private void writeObject(JSONObject object) {
+		writeObject(object, false);
+	}
+
+	/**
+	 * @param report end the object with the number of entries left out of the event
+	 */
+	private void writeObject(JSONObject object, boolean report) {
+		int entries = entryLimit;
+		entryLimit = Integer.MAX_VALUE;
+		out.append('{');
+		int written = 0;
+		for (Iterator<?> keys = object.keys(); keys.hasNext();) {
+			String key = (String) keys.next();
+			if (written == entries || out.length() >= full) {
+				omitted += object.length() - written;
+				break;
+			}
+			if (written++ > 0) {
+				out.append(',');
+			}
+			writeKey(key);
+			out.append(':');
+			writeEntryValue(key, object.opt(key));
+		}
+		if (report && omitted > 0) {
+			writeOmitted(written);
+		}
+		out.append('}');
+		entryLimit = entries;
+	}
+
+	private void writeEntryValue(String key, Object value) {
+		if (scrubber.isDenied(key)) {
+			writeString(SentryScrubber.FILTERED);
+		} else {
+			writeValue(value);
+		}
+	}
+
+	/**
+	 * @return the value with every match of the scrubber's patterns replaced
+	 */
+	private String mask(String value) {
+		if (matchers == null) {
+			return value;
+		}
+		for (Matcher matcher : matchers) {
+			matcher.reset(value);
+			if (matcher.find()) {
+				value = matcher.replaceAll(SentryScrubber.FILTERED);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Adds the number of entries left out of the event to the object being written.
+	 */
+	private void writeOmitted(int written) {
+		if (written > 0) {
+			out.append(',');
+		}
+		writeKey(TRUNCATED_ENTRIES);
+		out.append(':').append(omitted);
+	}
+
+	private static boolean isProtocol(String key) {
+		for (String protocol : PROTOCOL) {
+			if (protocol.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRequired(String key) {
+		for (String required : REQUIRED) {
+			if (required.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isExpendable(String key) {
+		for (String expendable : EXPENDABLE) {
+			if (expendable.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeArray(JSONArray array) {
+		out.append('[');
+		for (int i = 0, length = array.length(); i < length; i++) {
+			if (out.length() >= full) {
+				omitted += length - i;
+				break;
+			}
+			if (i > 0) {
+				out.append(',');
+			}
+			writeValue(array.opt(i));
+		}
+		out.append(']');
+	}
+
+	private void writeCollection(Collection<Object> collection) {
+		out.append('[');
+		int written = 0;
+		for (Object value : collection) {
+			if (out.length() >= full) {
+				omitted += collection.size() - written;
+				break;
+			}
+			if (written++ > 0) {
+				out.append(',');
+			}
+			writeValue(value);
+		}
+		out.append(']');
+	}
+
+	/**
+	 * Formats numbers the way Android's JSONObject.numberToString does, so
+	 * a whole Float is written as 2 and a Double -0.0 as -0.
+	 */
+	private void writeNumber(Number number) {
+		if (number.equals(NEGATIVE_ZERO)) {
+			out.append("-0");
+			return;
+		}
+		long longValue = number.longValue();
+		if (number.doubleValue() == (double) longValue) {
+			out.append(longValue);
+		} else {
+			out.append(number.toString());
+		}
+	}
+
+	/**
+	 * Keys are never cut short, so an object cannot end up with two equal ones.
+	 */
+	private void writeKey(String key) {
+		writeString(key, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	private void writeString(String value) {
+		writeString(value, stringLimit, full);
+	}
+
+	private void writeString(String value, int limit, int stop) {
+		out.append('"');
+		for (int i = 0, length = value.length(); i < length; i++) {
+			// a string that would run past the budget gets whatever room is left
+			if (i == limit || out.length() >= stop) {
+				out.append(TRUNCATED);
+				break;
+			}
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				out.append('\\').append(c);
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			case '\b':
+				out.append("\\b");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\f':
+				out.append("\\f");
+				break;
+			default:
+				if (c <= 0x1F) {
+					out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+				} else {
+					out.append(c);
+				}
+				break;
+			}
+		}
+		out.append('"');
+	}
+}
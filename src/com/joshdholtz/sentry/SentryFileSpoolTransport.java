@@ -0,0 +1,44 @@
+package com.joshdholtz.sentry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Writes each event to its own JSON file in a spool directory instead of
+ * sending it, for inspection or for another process to forward.
+ */
+public final class SentryFileSpoolTransport implements SentryTransport {
+
+	private final File directory;
+
+	public SentryFileSpoolTransport(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public SentryTransport.Response send(SentryEventRequest request) throws IOException {
+		// another sender may create it between the two calls
+		if (!directory.mkdirs() && !directory.isDirectory()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		// written under a temporary name so readers never see a partial event
+		File temp = new File(directory, request.getUuid() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			writer.write(request.getRequestData());
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(new File(directory, request.getUuid() + ".json"))) {
+			temp.delete();
+			throw new IOException("Cannot spool " + request.getUuid());
+		}
+		return new SentryTransport.Response(200, null);
+	}
+}
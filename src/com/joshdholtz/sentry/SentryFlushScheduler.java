@@ -0,0 +1,113 @@
+package com.joshdholtz.sentry;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Decides when stored events go out, based on the cached connectivity
+ * state and the configured flush policy, and drains the queue when the
+ * network comes back.
+ *
+ * With a coalescing window, non-fatal events are held in storage and the
+ * whole queue is drained once the window closes, so a burst of events costs
+ * one radio wake-up instead of one per event.
+ */
+final class SentryFlushScheduler implements SentryConnectivity.Listener {
+
+	private final SentryConnectivity connectivity;
+	private final Runnable drain;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Sentry-Flush");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private volatile boolean unmeteredOnlyForNonFatal;
+	private volatile long coalesceWindowMillis;
+	private boolean windowScheduled;
+
+	SentryFlushScheduler(SentryConnectivity connectivity, Runnable drain) {
+		this.connectivity = connectivity;
+		this.drain = drain;
+	}
+
+	/**
+	 * @param unmeteredOnlyForNonFatal hold events below FATAL until the device is on Wi-Fi
+	 * @param coalesceWindowMillis hold events below FATAL and send them together at most this
+	 *        long after the first one, 0 to send right away
+	 */
+	void setPolicy(boolean unmeteredOnlyForNonFatal, long coalesceWindowMillis) {
+		if (coalesceWindowMillis < 0) {
+			throw new IllegalArgumentException("Coalesce window must not be negative");
+		}
+		this.unmeteredOnlyForNonFatal = unmeteredOnlyForNonFatal;
+		this.coalesceWindowMillis = coalesceWindowMillis;
+	}
+
+	/**
+	 * @return true if an event of this level may be sent on the current network
+	 */
+	boolean isEligible(SentryEventLevel level) {
+		if (!connectivity.isConnected()) {
+			return false;
+		}
+		return level == SentryEventLevel.FATAL || !unmeteredOnlyForNonFatal || !connectivity.isMetered();
+	}
+
+	/**
+	 * @return true if a newly stored event should be sent now. An eligible
+	 *         event held for the coalescing window opens the window instead.
+	 */
+	boolean sendNow(SentryEventLevel level) {
+		if (!isEligible(level)) {
+			return false;
+		}
+		if (level == SentryEventLevel.FATAL || coalesceWindowMillis == 0 || connectivity.isCharging()) {
+			return true;
+		}
+		scheduleWindow();
+		return false;
+	}
+
+	/**
+	 * Runs the task on the flush thread after the delay.
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drains the queue on the flush thread.
+	 */
+	void drainSoon() {
+		timer.execute(drain);
+	}
+
+	@Override
+	public void onConnectivityGained() {
+		drainSoon();
+	}
+
+	private synchronized void scheduleWindow() {
+		if (windowScheduled) {
+			return;
+		}
+		windowScheduled = true;
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SentryFlushScheduler.this) {
+					windowScheduled = false;
+				}
+				drain.run();
+			}
+		}, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+	}
+}
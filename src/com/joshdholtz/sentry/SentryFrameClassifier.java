@@ -0,0 +1,171 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides, in one pass over a stack trace, which frames are in_app and which
+ * frame is the culprit.
+ *
+ * Not-in-app prefixes are compiled into a trie, so a class name is matched
+ * against all of them in a single walk that stops at the first prefix found.
+ * The outcome for each class name is kept in a bounded LRU cache, since the
+ * same classes show up in nearly every trace.
+ */
+final class SentryFrameClassifier {
+
+	private static final int FLAG_IN_APP = 1;
+	private static final int FLAG_CULPRIT = 2;
+
+	/**
+	 * The classification of one stack trace.
+	 */
+	static final class Frames {
+		final boolean[] inApp;
+		/** index of the culprit frame, or -1 if no frame is in the app package */
+		final int culprit;
+
+		Frames(boolean[] inApp, int culprit) {
+			this.inApp = inApp;
+			this.culprit = culprit;
+		}
+	}
+
+	private static final class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		boolean terminal;
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node child = child(c);
+			if (child == null) {
+				char[] newKeys = new char[keys.length + 1];
+				Node[] newChildren = new Node[children.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, keys.length);
+				System.arraycopy(children, 0, newChildren, 0, children.length);
+				child = new Node();
+				newKeys[keys.length] = c;
+				newChildren[children.length] = child;
+				keys = newKeys;
+				children = newChildren;
+			}
+			return child;
+		}
+	}
+
+	private final int cacheSize;
+	private final List<String> prefixes = new ArrayList<String>();
+	private final Map<String, Integer> cache;
+
+	private volatile Node root = new Node();
+	private volatile String packageName;
+
+	SentryFrameClassifier(Collection<String> notInAppPrefixes, int cacheSize) {
+		this.cacheSize = cacheSize;
+		this.cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > SentryFrameClassifier.this.cacheSize;
+			}
+		};
+		this.prefixes.addAll(notInAppPrefixes);
+		this.root = compile(this.prefixes);
+	}
+
+	/**
+	 * Frames of classes in this package are culprit candidates.
+	 */
+	synchronized void setPackageName(String packageName) {
+		this.packageName = packageName;
+		cache.clear();
+	}
+
+	/**
+	 * Marks classes starting with the prefix as not in_app.
+	 */
+	synchronized void addNotInAppPrefix(String prefix) {
+		if (prefix == null || prefix.length() == 0 || prefixes.contains(prefix)) {
+			return;
+		}
+		prefixes.add(prefix);
+		root = compile(prefixes);
+		cache.clear();
+	}
+
+	boolean isInApp(String className) {
+		return (flags(className) & FLAG_IN_APP) != 0;
+	}
+
+	Frames classify(StackTraceElement[] elements) {
+		boolean[] inApp = new boolean[elements.length];
+		int culprit = -1;
+		for (int i = 0; i < elements.length; i++) {
+			int flags = flags(elements[i].getClassName());
+			inApp[i] = (flags & FLAG_IN_APP) != 0;
+			if (culprit < 0 && (flags & FLAG_CULPRIT) != 0) {
+				culprit = i;
+			}
+		}
+		return new Frames(inApp, culprit);
+	}
+
+	private int flags(String className) {
+		synchronized (this) {
+			Integer cached = cache.get(className);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		int flags = 0;
+		if (!matchesPrefix(root, className)) {
+			flags |= FLAG_IN_APP;
+		}
+		String pkg = packageName;
+		if (pkg != null && className.contains(pkg)) {
+			flags |= FLAG_CULPRIT;
+		}
+
+		synchronized (this) {
+			cache.put(className, flags);
+		}
+		return flags;
+	}
+
+	private static boolean matchesPrefix(Node node, String className) {
+		for (int i = 0, length = className.length(); i < length; i++) {
+			node = node.child(className.charAt(i));
+			if (node == null) {
+				return false;
+			}
+			if (node.terminal) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Node compile(List<String> prefixes) {
+		Node root = new Node();
+		for (String prefix : prefixes) {
+			Node node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.addChild(prefix.charAt(i));
+			}
+			node.terminal = true;
+		}
+		return root;
+	}
+}
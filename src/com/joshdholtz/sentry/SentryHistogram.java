@@ -0,0 +1,99 @@
+package com.joshdholtz.sentry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power-of-two buckets, cheap enough to record
+ * every event in production. Bucket i counts values below 2^i, so
+ * percentiles are exact to within a factor of two.
+ */
+public final class SentryHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	SentryHistogram() {
+
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * A point-in-time copy of a histogram.
+	 */
+	public static final class Snapshot {
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] buckets, long count, long sum, long max) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile from 0 to 100
+		 * @return the upper bound of the bucket holding that percentile
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			for (long bucket : buckets) {
+				total += bucket;
+			}
+			long rank = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(max, (1L << i) - 1);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " max=" + max;
+		}
+	}
+
+	Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return new Snapshot(copy, count.get(), sum.get(), max.get());
+	}
+}
@@ -0,0 +1,145 @@
+package com.joshdholtz.sentry;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.joshdholtz.sentry.Sentry.SentryBackpressure;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+
+/**
+ * Hands captured events from any number of threads to a single background
+ * worker, which serializes and stores them.
+ *
+ * Producers only append to a lock-free queue and, if the worker is parked,
+ * unpark it. The queue is bounded by a counter; when it is full the
+ * configured backpressure policy decides what gives.
+ */
+final class SentryIngestQueue {
+
+	private static final String TAG = "Sentry";
+
+	/**
+	 * Processes one event on the worker thread.
+	 */
+	interface Consumer {
+		void process(SentryEventBuilder builder);
+	}
+
+	/**
+	 * Told about every event the backpressure policy throws away.
+	 */
+	interface OverflowListener {
+		void onOverflow(SentryEventBuilder builder);
+	}
+
+	private final Consumer consumer;
+	private final OverflowListener overflowListener;
+	private final ConcurrentLinkedQueue<SentryEventBuilder> queue = new ConcurrentLinkedQueue<SentryEventBuilder>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	private volatile int capacity = 1000;
+	private volatile SentryBackpressure backpressure = SentryBackpressure.DROP_NEWEST;
+
+	private volatile Thread worker;
+	private volatile boolean parked;
+
+	SentryIngestQueue(Consumer consumer, OverflowListener overflowListener) {
+		this.consumer = consumer;
+		this.overflowListener = overflowListener;
+	}
+
+	void setLimits(int capacity, SentryBackpressure backpressure) {
+		if (capacity < 1 || backpressure == null) {
+			throw new IllegalArgumentException("Invalid ingest queue limits");
+		}
+		this.capacity = capacity;
+		this.backpressure = backpressure;
+	}
+
+	/**
+	 * Queues the event for the worker, applying the backpressure policy if
+	 * the queue is full.
+	 */
+	void offer(SentryEventBuilder builder) {
+		if (size.incrementAndGet() > capacity) {
+			switch (backpressure) {
+			case DROP_OLDEST:
+				SentryEventBuilder oldest = queue.poll();
+				if (oldest != null) {
+					size.decrementAndGet();
+					overflowListener.onOverflow(oldest);
+				}
+				break;
+			case CALLER_RUNS:
+				size.decrementAndGet();
+				consumer.process(builder);
+				return;
+			default:
+				size.decrementAndGet();
+				overflowListener.onOverflow(builder);
+				return;
+			}
+		}
+
+		queue.offer(builder);
+		ensureWorker();
+		if (parked) {
+			LockSupport.unpark(worker);
+		}
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Starts the worker, or a new one if the last one died.
+	 */
+	private void ensureWorker() {
+		Thread current = worker;
+		if (current != null && current.isAlive()) {
+			return;
+		}
+		synchronized (this) {
+			// started inside this lock, so a worker seen here has had start() called
+			if (worker != null && worker.isAlive()) {
+				return;
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					loop();
+				}
+			}, "Sentry-Ingest");
+			thread.setDaemon(true);
+			worker = thread;
+			thread.start();
+		}
+	}
+
+	private void loop() {
+		while (true) {
+			SentryEventBuilder builder = queue.poll();
+			if (builder == null) {
+				parked = true;
+				// re-check after announcing, so an offer racing with us is not missed
+				if (queue.isEmpty()) {
+					LockSupport.park(this);
+				}
+				parked = false;
+				continue;
+			}
+
+			size.decrementAndGet();
+			try {
+				consumer.process(builder);
+			} catch (Throwable e) {
+				// an Error from one event must not take the worker down with it
+				Log.e(TAG, "Unable to process captured event", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package com.joshdholtz.sentry;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Segmented, append-only journal of unsent events.
+ *
+ * Every change is a single record appended to the active segment:
+ *
+ * <pre>
+ * type:1 | uuid msb:8 | uuid lsb:8 | length:4 | payload:length | crc32:4
+ * </pre>
+ *
+ * Segments are replayed in id order on open. A torn or corrupt record at the
+ * end of the newest segment is truncated away. Compaction copies the live
+ * records of all sealed segments into a new segment that starts with a
+ * SNAPSHOT record, so any older segment left behind by a crash is ignored on
+ * the next replay.
+ */
+final class SentryJournal {
+
+	private static final String TAG = "Sentry";
+
+	static final byte TYPE_ADD = 1;
+	static final byte TYPE_REMOVE = 2;
+	static final byte TYPE_SNAPSHOT = 3;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int HEADER_SIZE = 1 + 8 + 8 + 4;
+	private static final int TRAILER_SIZE = 4;
+	private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+	private static final UUID NIL = new UUID(0, 0);
+
+	private final File directory;
+	private final Executor compactionExecutor;
+	private final long maxSegmentBytes;
+	private final long compactionThresholdBytes;
+
+	private final Set<UUID> live = new HashSet<UUID>();
+	private final HashMap<UUID, Integer> recordSizes = new HashMap<UUID, Integer>();
+
+	private FileOutputStream active;
+	private long activeId;
+	private long activeBytes;
+	private long deadBytes;
+	private boolean compacting;
+
+	private byte[] buffer = new byte[4096];
+	private final CRC32 crc = new CRC32();
+
+	SentryJournal(File directory, Executor compactionExecutor) {
+		this(directory, compactionExecutor, 256 * 1024, 64 * 1024);
+	}
+
+	SentryJournal(File directory, Executor compactionExecutor, long maxSegmentBytes, long compactionThresholdBytes) {
+		this.directory = directory;
+		this.compactionExecutor = compactionExecutor;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.compactionThresholdBytes = compactionThresholdBytes;
+	}
+
+	/**
+	 * Receives the records replayed by {@link SentryJournal#open(Replay)}.
+	 */
+	interface Replay {
+		void onAdd(UUID uuid, byte[] payload);
+		void onRemove(UUID uuid);
+		void onReset();
+	}
+
+	/**
+	 * Replays every segment in order and reopens the newest one for appending.
+	 */
+	synchronized void open(Replay replay) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		for (File temp : listFiles(TEMP_SUFFIX)) {
+			temp.delete();
+		}
+
+		List<Long> ids = segmentIds();
+		for (int i = 0; i < ids.size(); i++) {
+			boolean last = i == ids.size() - 1;
+			replaySegment(segmentFile(ids.get(i)), last, replay);
+		}
+
+		activeId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1);
+		openActive();
+		maybeCompact();
+	}
+
+	boolean contains(UUID uuid) {
+		synchronized (this) {
+			return live.contains(uuid);
+		}
+	}
+
+	int size() {
+		synchronized (this) {
+			return live.size();
+		}
+	}
+
+	synchronized boolean append(UUID uuid, byte[] payload) throws IOException {
+		if (live.contains(uuid)) {
+			return false;
+		}
+
+		int written = writeRecord(TYPE_ADD, uuid, payload);
+		live.add(uuid);
+		recordSizes.put(uuid, written);
+		return true;
+	}
+
+	synchronized boolean remove(UUID uuid) throws IOException {
+		if (!live.remove(uuid)) {
+			return false;
+		}
+
+		int written = writeRecord(TYPE_REMOVE, uuid, null);
+		Integer added = recordSizes.remove(uuid);
+		deadBytes += written + (added != null ? added : 0);
+		maybeCompact();
+		return true;
+	}
+
+	synchronized void close() {
+		closeQuietly(active);
+		active = null;
+	}
+
+	private void replaySegment(File file, boolean last, Replay replay) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long good = 0;
+		boolean first = true;
+		try {
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long msb = in.readLong();
+				long lsb = in.readLong();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_PAYLOAD) {
+					throw new IOException("Bad record length " + length);
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				int expected = in.readInt();
+
+				crc.reset();
+				crc.update(type);
+				updateLong(msb);
+				updateLong(lsb);
+				updateInt(length);
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != expected) {
+					throw new IOException("Bad record checksum");
+				}
+
+				UUID uuid = new UUID(msb, lsb);
+				int size = HEADER_SIZE + length + TRAILER_SIZE;
+				if (type == TYPE_ADD) {
+					if (live.add(uuid)) {
+						recordSizes.put(uuid, size);
+						replay.onAdd(uuid, payload);
+					}
+				} else if (type == TYPE_REMOVE) {
+					if (live.remove(uuid)) {
+						Integer added = recordSizes.remove(uuid);
+						deadBytes += size + (added != null ? added : 0);
+						replay.onRemove(uuid);
+					}
+				} else if (type == TYPE_SNAPSHOT && first) {
+					live.clear();
+					recordSizes.clear();
+					deadBytes = 0;
+					replay.onReset();
+				} else {
+					throw new IOException("Bad record type " + type);
+				}
+				first = false;
+				good += size;
+			}
+		} catch (IOException e) {
+			// EOFException inside a record means the process died mid-append
+			Log.e(TAG, "Journal segment " + file.getName() + " is torn at " + good, e);
+			if (last) {
+				truncate(file, good);
+			}
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private int writeRecord(byte type, UUID uuid, byte[] payload) throws IOException {
+		if (active == null) {
+			openActive();
+		}
+
+		int size = HEADER_SIZE + (payload != null ? payload.length : 0) + TRAILER_SIZE;
+		if (buffer.length < size) {
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		}
+		int pos = encode(buffer, crc, type, uuid, payload);
+
+		// One write per record so a crash can only tear the final record
+		active.write(buffer, 0, pos);
+		activeBytes += pos;
+
+		if (activeBytes >= maxSegmentBytes) {
+			rollActive();
+		}
+		return pos;
+	}
+
+	private void openActive() throws IOException {
+		File file = segmentFile(activeId);
+		active = new FileOutputStream(file, true);
+		activeBytes = file.length();
+	}
+
+	private void rollActive() throws IOException {
+		closeQuietly(active);
+		activeId++;
+		openActive();
+	}
+
+	private void maybeCompact() {
+		if (compacting || compactionExecutor == null || deadBytes < compactionThresholdBytes) {
+			return;
+		}
+
+		compacting = true;
+		try {
+			rollActive();
+		} catch (IOException e) {
+			compacting = false;
+			Log.e(TAG, "Unable to roll journal segment", e);
+			return;
+		}
+
+		final long target = activeId - 1;
+		final Set<UUID> snapshot = new HashSet<UUID>(live);
+		final long deadAtStart = deadBytes;
+
+		compactionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact(target, snapshot, deadAtStart);
+			}
+		});
+	}
+
+	/**
+	 * Copies the live records of every segment up to and including target into
+	 * a new target segment. Sealed segments are never appended to again, so
+	 * this runs without holding the journal lock until the final rename.
+	 */
+	private void compact(long target, Set<UUID> snapshot, long deadAtStart) {
+		File temp = new File(directory, target + TEMP_SUFFIX);
+		FileOutputStream out = null;
+		try {
+			List<Long> ids = segmentIds();
+			out = new FileOutputStream(temp);
+			byte[] header = new byte[HEADER_SIZE + TRAILER_SIZE];
+			out.write(header, 0, encode(header, new CRC32(), TYPE_SNAPSHOT, NIL, null));
+
+			Set<UUID> copied = new HashSet<UUID>();
+			for (Long id : ids) {
+				if (id > target) {
+					break;
+				}
+				copyLive(segmentFile(id), out, snapshot, copied);
+			}
+			out.getFD().sync();
+			closeQuietly(out);
+			out = null;
+
+			synchronized (this) {
+				if (!temp.renameTo(segmentFile(target))) {
+					throw new IOException("Cannot commit compacted segment " + target);
+				}
+				for (Long id : ids) {
+					if (id < target) {
+						segmentFile(id).delete();
+					}
+				}
+				deadBytes = Math.max(0, deadBytes - deadAtStart);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Journal compaction failed", e);
+			closeQuietly(out);
+			temp.delete();
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private static void copyLive(File file, FileOutputStream out, Set<UUID> snapshot, Set<UUID> copied) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				long msb = in.readLong();
+				long lsb = in.readLong();
+				int length = in.readInt();
+				if (length < 0 || length > MAX_PAYLOAD) {
+					break;
+				}
+				byte[] record = new byte[HEADER_SIZE + length + TRAILER_SIZE];
+				in.readFully(record, HEADER_SIZE, length + TRAILER_SIZE);
+
+				// The stored checksum stays valid because the header is rewritten unchanged
+				UUID uuid = new UUID(msb, lsb);
+				if (type == TYPE_ADD && snapshot.contains(uuid) && copied.add(uuid)) {
+					int pos = 0;
+					record[pos++] = type;
+					pos = putLong(record, pos, msb);
+					pos = putLong(record, pos, lsb);
+					putInt(record, pos, length);
+					out.write(record);
+				}
+			}
+		} catch (EOFException e) {
+			// torn tail, everything before it has been copied
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private static int encode(byte[] dst, CRC32 crc, byte type, UUID uuid, byte[] payload) {
+		int length = payload != null ? payload.length : 0;
+		int pos = 0;
+		dst[pos++] = type;
+		pos = putLong(dst, pos, uuid.getMostSignificantBits());
+		pos = putLong(dst, pos, uuid.getLeastSignificantBits());
+		pos = putInt(dst, pos, length);
+		if (length > 0) {
+			System.arraycopy(payload, 0, dst, pos, length);
+			pos += length;
+		}
+		crc.reset();
+		crc.update(dst, 0, pos);
+		return putInt(dst, pos, (int) crc.getValue());
+	}
+
+	private List<Long> segmentIds() {
+		List<Long> ids = new ArrayList<Long>();
+		for (File file : listFiles(SEGMENT_SUFFIX)) {
+			String name = file.getName();
+			try {
+				ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "Ignoring unknown journal file " + name);
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private List<File> listFiles(String suffix) {
+		File[] files = directory.listFiles();
+		List<File> matching = new ArrayList<File>();
+		if (files != null) {
+			for (File file : Arrays.asList(files)) {
+				if (file.getName().endsWith(suffix)) {
+					matching.add(file);
+				}
+			}
+		}
+		return matching;
+	}
+
+	private File segmentFile(long id) {
+		return new File(directory, id + SEGMENT_SUFFIX);
+	}
+
+	private static void truncate(File file, long length) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to truncate " + file.getName(), e);
+		} finally {
+			closeQuietly(raf);
+		}
+	}
+
+	private void updateLong(long value) {
+		updateInt((int) (value >>> 32));
+		updateInt((int) value);
+	}
+
+	private void updateInt(int value) {
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	private static int putLong(byte[] b, int pos, long value) {
+		pos = putInt(b, pos, (int) (value >>> 32));
+		return putInt(b, pos, (int) value);
+	}
+
+	private static int putInt(byte[] b, int pos, int value) {
+		b[pos++] = (byte) (value >>> 24);
+		b[pos++] = (byte) (value >>> 16);
+		b[pos++] = (byte) (value >>> 8);
+		b[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
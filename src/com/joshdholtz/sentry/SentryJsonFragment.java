@@ -0,0 +1,62 @@
+package com.joshdholtz.sentry;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A JSON object serialized once and copied verbatim into every event that
+ * carries it, for parts of the event that are the same each time.
+ */
+final class SentryJsonFragment implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	final String json;
+
+	SentryJsonFragment(Map<String, ?> values) {
+		@SuppressWarnings("unchecked")
+		Map<String, Object> map = (Map<String, Object>) values;
+		this.json = SentryEventWriter.write(map);
+	}
+
+	/**
+	 * @param json a JSON object's text, already serialized
+	 */
+	SentryJsonFragment(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * @return a fresh JSONObject with the fragment's contents, for callers that edit it
+	 */
+	JSONObject toJSONObject() {
+		try {
+			return new JSONObject(json);
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return a fresh map of the fragment's string values
+	 */
+	Map<String, String> toMap() {
+		JSONObject object = toJSONObject();
+		Map<String, String> map = new HashMap<String, String>();
+		for (Iterator<?> keys = object.keys(); keys.hasNext();) {
+			String key = (String) keys.next();
+			map.put(key, object.optString(key));
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return json;
+	}
+}
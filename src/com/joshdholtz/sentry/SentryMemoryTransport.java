@@ -0,0 +1,48 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Keeps every event it is given in memory and answers with a fixed status
+ * code. Meant for tests that exercise the client without a network.
+ */
+public final class SentryMemoryTransport implements SentryTransport {
+
+	private final List<SentryEventRequest> sent = new ArrayList<SentryEventRequest>();
+	private volatile int code = 200;
+	private volatile String retryAfter;
+
+	/**
+	 * Sets the response given to every following event.
+	 */
+	public void respondWith(int code, String retryAfter) {
+		this.code = code;
+		this.retryAfter = retryAfter;
+	}
+
+	@Override
+	public SentryTransport.Response send(SentryEventRequest request) {
+		synchronized (sent) {
+			sent.add(request);
+		}
+		return new SentryTransport.Response(code, retryAfter);
+	}
+
+	/**
+	 * @return a snapshot of the events sent so far
+	 */
+	public List<SentryEventRequest> getSent() {
+		synchronized (sent) {
+			return new ArrayList<SentryEventRequest>(sent);
+		}
+	}
+
+	public void clear() {
+		synchronized (sent) {
+			sent.clear();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.joshdholtz.sentry.Sentry.SentryCompression;
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+
+/**
+ * Posts events to the store endpoint of a parsed DSN over a shared
+ * OkHttpClient, so consecutive calls reuse its pooled connection.
+ */
+final class SentryOkHttpTransport implements SentryTransport {
+
+	private static final String TAG = "Sentry";
+
+	private final OkHttpClient client;
+	private final SentryDsn dsn;
+	private final String userAgent;
+
+	private volatile SentryCompression compression = SentryCompression.NONE;
+	private volatile int compressionThreshold = 1024;
+
+	SentryOkHttpTransport(OkHttpClient client, SentryDsn dsn, String clientVersion) {
+		this.client = client;
+		this.dsn = dsn;
+		this.userAgent = "sentry-android/" + clientVersion;
+	}
+
+	void setCompression(SentryCompression compression, int thresholdChars) {
+		this.compression = compression;
+		this.compressionThreshold = thresholdChars;
+	}
+
+	@Override
+	public Response send(SentryEventRequest request) throws IOException {
+		SentryRequestBody body = SentryRequestBody.create(Sentry.json, request.getRequestData(), compression, compressionThreshold);
+
+		Request.Builder builder = new Request.Builder()
+			.url(dsn.storeUrl)
+			.addHeader("User-Agent", userAgent)
+			.addHeader("X-Sentry-Auth", dsn.authHeader(System.currentTimeMillis()));
+		if (body.contentEncoding() != null) {
+			builder.addHeader("Content-Encoding", body.contentEncoding());
+		}
+		Request req = builder.post(body).build();
+
+		com.squareup.okhttp.Response res = client.newCall(req).execute();
+		Log.d(TAG, "SendEvent - " + res.code() + " " + res.body().string());
+		return new Response(res.code(), res.header("Retry-After"));
+	}
+}
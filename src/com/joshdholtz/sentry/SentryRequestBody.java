@@ -0,0 +1,132 @@
+package com.joshdholtz.sentry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okio.BufferedSink;
+
+import com.joshdholtz.sentry.Sentry.SentryCompression;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+/**
+ * Holds event JSON for the request, compressing it when the payload is
+ * large enough to be worth it.
+ *
+ * Most bodies are encoded up front and sent with a Content-Length, which
+ * saves the chunked framing and is the only thing some proxies accept.
+ * Only compressed payloads past {@link #STREAM_THRESHOLD} are written
+ * straight into the sink, so nothing but the compressor's own window is
+ * buffered for them.
+ */
+final class SentryRequestBody extends RequestBody {
+
+	private static final int WRITE_CHUNK = 2048;
+	private static final int STREAM_THRESHOLD = 64 * 1024;
+
+	private final MediaType contentType;
+	private final String data;
+	private final SentryCompression compression;
+	private final byte[] encoded;
+
+	private SentryRequestBody(MediaType contentType, String data, SentryCompression compression, byte[] encoded) {
+		this.contentType = contentType;
+		this.data = data;
+		this.compression = compression;
+		this.encoded = encoded;
+	}
+
+	/**
+	 * @param threshold payloads shorter than this many characters are sent uncompressed
+	 */
+	static SentryRequestBody create(MediaType contentType, String data, SentryCompression compression, int threshold) throws IOException {
+		if (data.length() < threshold) {
+			compression = SentryCompression.NONE;
+		}
+		if (compression == SentryCompression.NONE) {
+			return new SentryRequestBody(contentType, null, compression, data.getBytes("UTF-8"));
+		}
+		if (data.length() < STREAM_THRESHOLD) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length() / 2);
+			encode(buffer, data, compression);
+			return new SentryRequestBody(contentType, null, compression, buffer.toByteArray());
+		}
+		return new SentryRequestBody(contentType, data, compression, null);
+	}
+
+	/**
+	 * @return the Content-Encoding header value, or null when sent as is
+	 */
+	String contentEncoding() {
+		return compression.encoding;
+	}
+
+	@Override
+	public MediaType contentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the encoded size, or -1 for a body streamed in chunks
+	 */
+	@Override
+	public long contentLength() {
+		return encoded != null ? encoded.length : -1;
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		if (encoded != null) {
+			sink.write(encoded);
+			return;
+		}
+		encode(sink.outputStream(), data, compression);
+	}
+
+	private static void encode(OutputStream target, String data, SentryCompression compression) throws IOException {
+		// Closing the compressor releases its native state but must not close the target
+		OutputStream out = new FilterOutputStream(target) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+		switch (compression) {
+		case GZIP:
+			out = new GZIPOutputStream(out, WRITE_CHUNK);
+			break;
+		case DEFLATE:
+			out = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), WRITE_CHUNK) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					def.end();
+				}
+			};
+			break;
+		default:
+			break;
+		}
+
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		try {
+			for (int start = 0; start < data.length(); start += WRITE_CHUNK) {
+				writer.write(data, start, Math.min(WRITE_CHUNK, data.length() - start));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.joshdholtz.sentry;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.SharedPreferences;
+
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Schedules failed events to be sent again with exponential backoff and
+ * jitter, and keeps a global backoff gate for when the server asks clients
+ * to slow down.
+ *
+ * The attempt count and next attempt time of each event, and the gate, are
+ * kept in SharedPreferences so a restart does not reset them. An event
+ * has at most one timer pending, however often it is resumed.
+ */
+final class SentryRetryScheduler {
+
+	private static final String KEY_BACKOFF_UNTIL = "backoff_until";
+
+	static final long DEFAULT_BASE_DELAY_MILLIS = 5 * 1000;
+	static final long DEFAULT_MAX_DELAY_MILLIS = 60 * 60 * 1000;
+	static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	/**
+	 * Receives events whose retry delay has passed.
+	 */
+	interface Target {
+		/**
+		 * @return false if the event was not sent because it is no longer stored
+		 */
+		boolean resend(SentryEventRequest request);
+	}
+
+	private final SharedPreferences preferences;
+	private final Target target;
+	private final Random random = new Random();
+	private final Set<UUID> scheduled = new HashSet<UUID>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Sentry-Retry");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	SentryRetryScheduler(SharedPreferences preferences, Target target) {
+		this.preferences = preferences;
+		this.target = target;
+	}
+
+	/**
+	 * @param baseDelayMillis delay before the first retry
+	 * @param maxDelayMillis longest delay between two attempts
+	 * @param maxAttempts failed attempts after which an event is dropped
+	 */
+	void setPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+		checkPolicy(baseDelayMillis, maxDelayMillis, maxAttempts);
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	static void checkPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+		if (baseDelayMillis < 1 || maxDelayMillis < baseDelayMillis || maxAttempts < 1) {
+			throw new IllegalArgumentException("Invalid retry policy");
+		}
+	}
+
+	/**
+	 * Records a failed attempt and schedules the next one.
+	 *
+	 * @param minDelayMillis the server's Retry-After, or 0
+	 * @return false if the event ran out of attempts and should be dropped
+	 */
+	boolean retry(final SentryEventRequest request, long minDelayMillis) {
+		String key = request.getUuid().toString();
+		int attempts = attempts(preferences.getString(key, null)) + 1;
+		if (attempts >= maxAttempts) {
+			forget(request.getUuid());
+			return false;
+		}
+
+		long delay = Math.max(backoff(attempts), minDelayMillis);
+		preferences.edit()
+			.putString(key, attempts + ":" + (System.currentTimeMillis() + delay))
+			.commit();
+		schedule(request, delay);
+		return true;
+	}
+
+	/**
+	 * Sends the event when its persisted retry time comes, right away if it
+	 * has none. An event whose timer is already pending is left to it.
+	 * @return true if the event was sent right away, false if it was
+	 *         scheduled for later or is no longer stored
+	 */
+	boolean resume(SentryEventRequest request) {
+		synchronized (scheduled) {
+			if (scheduled.contains(request.getUuid())) {
+				return false;
+			}
+		}
+		long delay = nextAttemptAt(preferences.getString(request.getUuid().toString(), null)) - System.currentTimeMillis();
+		if (delay > 0) {
+			schedule(request, delay);
+			return false;
+		}
+		return target.resend(request);
+	}
+
+	void forget(UUID uuid) {
+		String key = uuid.toString();
+		if (preferences.contains(key)) {
+			preferences.edit().remove(key).commit();
+		}
+	}
+
+	/**
+	 * Closes the gate so nothing is sent before the given time.
+	 */
+	void backoffUntil(long untilMillis) {
+		if (untilMillis > backoffUntil()) {
+			preferences.edit().putLong(KEY_BACKOFF_UNTIL, untilMillis).commit();
+		}
+	}
+
+	long backoffUntil() {
+		return preferences.getLong(KEY_BACKOFF_UNTIL, 0);
+	}
+
+	/**
+	 * @return a delay for the given attempt, between half and all of the capped exponential backoff
+	 */
+	long backoff(int attempts) {
+		long delay = baseDelayMillis << Math.min(attempts - 1, 30);
+		if (delay <= 0 || delay > maxDelayMillis) {
+			delay = maxDelayMillis;
+		}
+		synchronized (random) {
+			return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+		}
+	}
+
+	private void schedule(final SentryEventRequest request, long delay) {
+		synchronized (scheduled) {
+			if (!scheduled.add(request.getUuid())) {
+				return;
+			}
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (scheduled) {
+					scheduled.remove(request.getUuid());
+				}
+				target.resend(request);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private static int attempts(String state) {
+		if (state == null) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(state.substring(0, state.indexOf(':')));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	private static long nextAttemptAt(String state) {
+		if (state == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(state.substring(state.indexOf(':') + 1));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+}
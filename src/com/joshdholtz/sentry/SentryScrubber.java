@@ -0,0 +1,78 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scrub rules compiled once: keys whose values are never sent, matched
+ * without regard to case, and value patterns masked wherever they appear.
+ * The rules are applied by {@link SentryEventWriter} as it writes each key
+ * and string, so events are never walked or copied to scrub them.
+ *
+ * Patterns without capturing groups are joined into one alternation, so a
+ * string is scanned once however many there are. A pattern with groups is
+ * matched on its own, since joining would renumber its backreferences.
+ */
+final class SentryScrubber {
+
+	static final String FILTERED = "[Filtered]";
+
+	static final SentryScrubber NONE = new SentryScrubber(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+	private final TreeSet<String> deniedKeys = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+	private final Pattern[] values;
+
+	/**
+	 * @param deniedKeys keys whose values are replaced, at any depth
+	 * @param valuePatterns regular expressions whose matches in any string are replaced
+	 * @throws IllegalArgumentException if a pattern is invalid
+	 */
+	SentryScrubber(Collection<String> deniedKeys, Collection<String> valuePatterns) {
+		this.deniedKeys.addAll(deniedKeys);
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		StringBuilder combined = new StringBuilder();
+		for (String pattern : valuePatterns) {
+			// each on its own first, so a stray parenthesis can't run two patterns together
+			Pattern compiled = Pattern.compile(pattern);
+			if (compiled.matcher("").groupCount() > 0) {
+				patterns.add(compiled);
+				continue;
+			}
+			if (combined.length() > 0) {
+				combined.append('|');
+			}
+			combined.append("(?:").append(pattern).append(')');
+		}
+		if (combined.length() > 0) {
+			patterns.add(0, Pattern.compile(combined.toString()));
+		}
+		this.values = patterns.isEmpty() ? null : patterns.toArray(new Pattern[patterns.size()]);
+	}
+
+	boolean isEmpty() {
+		return deniedKeys.isEmpty() && values == null;
+	}
+
+	boolean isDenied(String key) {
+		return !deniedKeys.isEmpty() && deniedKeys.contains(key);
+	}
+
+	/**
+	 * @return matchers for the value patterns to be reused with reset, or null if there are none
+	 */
+	Matcher[] newMatchers() {
+		if (values == null) {
+			return null;
+		}
+		Matcher[] matchers = new Matcher[values.length];
+		for (int i = 0; i < values.length; i++) {
+			matchers[i] = values[i].matcher("");
+		}
+		return matchers;
+	}
+}
@@ -0,0 +1,121 @@
+package com.joshdholtz.sentry;
+
+/**
+ * Picks which frames of a stack trace are worth sending.
+ *
+ * Three passes, each on what the previous one kept:
+ * <ol>
+ * <li>frames a cause shares with the trace of the exception wrapping it are
+ * elided, as printStackTrace does with "... n more"</li>
+ * <li>runs of a repeating block of up to {@link #MAX_RECURSION_PERIOD}
+ * frames, as left by deep recursion, are collapsed to one block</li>
+ * <li>a trace still over the frame budget keeps its head and tail</li>
+ * </ol>
+ */
+final class SentryStackTraceTrimmer {
+
+	static final int MAX_RECURSION_PERIOD = 8;
+
+	/**
+	 * The frames to keep, as indices into the original trace in its order.
+	 */
+	static final class Kept {
+		final int[] indices;
+		final int count;
+		final int dropped;
+
+		Kept(int[] indices, int count, int dropped) {
+			this.indices = indices;
+			this.count = count;
+			this.dropped = dropped;
+		}
+	}
+
+	private SentryStackTraceTrimmer() {
+
+	}
+
+	/**
+	 * @param enclosing the trace of the exception this one is the cause of, or null
+	 * @param budget most frames kept, 0 for no limit
+	 */
+	static Kept trim(StackTraceElement[] elements, StackTraceElement[] enclosing, int budget) {
+		int length = elements.length - commonFrames(elements, enclosing);
+		if (length == 0 && elements.length > 0) {
+			// keep the frame the cause was thrown from
+			length = 1;
+		}
+
+		int[] kept = new int[length];
+		int count = 0;
+		int i = 0;
+		while (i < length) {
+			int bestPeriod = 0;
+			int bestRepeats = 0;
+			for (int period = 1; period <= MAX_RECURSION_PERIOD && i + 2 * period <= length; period++) {
+				int repeats = repeats(elements, i, period, length);
+				if (repeats > 1 && (repeats - 1) * period > (bestRepeats - 1) * bestPeriod) {
+					bestPeriod = period;
+					bestRepeats = repeats;
+				}
+			}
+
+			if (bestPeriod > 0) {
+				for (int k = 0; k < bestPeriod; k++) {
+					kept[count++] = i + k;
+				}
+				i += bestPeriod * bestRepeats;
+			} else {
+				kept[count++] = i++;
+			}
+		}
+
+		if (budget > 0 && count > budget) {
+			int head = (budget + 1) / 2;
+			int tail = budget - head;
+			System.arraycopy(kept, count - tail, kept, head, tail);
+			count = budget;
+		}
+		return new Kept(kept, count, elements.length - count);
+	}
+
+	/**
+	 * @return how many frames at the bottom of the trace are also at the bottom of the enclosing one
+	 */
+	private static int commonFrames(StackTraceElement[] elements, StackTraceElement[] enclosing) {
+		if (enclosing == null) {
+			return 0;
+		}
+		int m = elements.length - 1;
+		int n = enclosing.length - 1;
+		int common = 0;
+		while (m >= 0 && n >= 0 && elements[m].equals(enclosing[n])) {
+			m--;
+			n--;
+			common++;
+		}
+		return common;
+	}
+
+	/**
+	 * @return how many times the block of frames starting at start repeats back to back
+	 */
+	private static int repeats(StackTraceElement[] elements, int start, int period, int length) {
+		int repeats = 1;
+		int next = start + period;
+		while (next + period <= length && sameBlock(elements, start, next, period)) {
+			repeats++;
+			next += period;
+		}
+		return repeats;
+	}
+
+	private static boolean sameBlock(StackTraceElement[] elements, int a, int b, int period) {
+		for (int k = 0; k < period; k++) {
+			if (!elements[a + k].equals(elements[b + k])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
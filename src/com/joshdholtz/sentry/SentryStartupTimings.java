@@ -0,0 +1,57 @@
+package com.joshdholtz.sentry;
+
+/**
+ * How long each part of Sentry's startup took, to hold cold-start cost to a
+ * budget. Values are in milliseconds and are -1 until that step has run.
+ */
+public final class SentryStartupTimings {
+
+	volatile long initMillis = -1;
+	volatile long storageLoadMillis = -1;
+	volatile long crashPromotionMillis = -1;
+	volatile long drainMillis = -1;
+
+	SentryStartupTimings() {
+
+	}
+
+	/**
+	 * @return time spent in Sentry.init on the calling thread
+	 */
+	public long getInitMillis() {
+		return initMillis;
+	}
+
+	/**
+	 * @return time the background thread spent loading the unsent event journal
+	 */
+	public long getStorageLoadMillis() {
+		return storageLoadMillis;
+	}
+
+	/**
+	 * @return time the background thread spent mapping the crash slot and queueing the last crash
+	 */
+	public long getCrashPromotionMillis() {
+		return crashPromotionMillis;
+	}
+
+	/**
+	 * @return time the background thread spent handing the stored backlog to the dispatcher
+	 */
+	public long getDrainMillis() {
+		return drainMillis;
+	}
+
+	/**
+	 * @return true once the deferred startup work has finished
+	 */
+	public boolean isComplete() {
+		return drainMillis >= 0;
+	}
+
+	@Override
+	public String toString() {
+		return "init=" + initMillis + "ms storage=" + storageLoadMillis + "ms crash=" + crashPromotionMillis + "ms drain=" + drainMillis + "ms";
+	}
+}
@@ -0,0 +1,241 @@
+package com.joshdholtz.sentry;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Counters, gauges and histograms for the reporting pipeline. Recording is
+ * a few atomic operations, so the stats are always on.
+ */
+public final class SentryStats {
+
+	private static final String TAG = "Sentry";
+
+	/**
+	 * Receives a snapshot of the stats at a fixed period.
+	 */
+	public interface Listener {
+		void onStats(Snapshot snapshot);
+	}
+
+	final AtomicLong captured = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong aggregated = new AtomicLong();
+	final AtomicLong persisted = new AtomicLong();
+	final AtomicLong evicted = new AtomicLong();
+	final AtomicLong sent = new AtomicLong();
+	final AtomicLong transportErrors = new AtomicLong();
+	volatile long queueDepth;
+	volatile long queueBytes;
+
+	final SentryHistogram uploadLatencyMillis = new SentryHistogram();
+	final SentryHistogram serializationMicros = new SentryHistogram();
+	final SentryHistogram storageWriteMicros = new SentryHistogram();
+	private final ConcurrentHashMap<Integer, AtomicLong> responseCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private ScheduledExecutorService timer;
+	private ScheduledFuture<?> listenerTask;
+
+	SentryStats() {
+
+	}
+
+	void recordResponse(int code, long latencyMillis) {
+		sent.incrementAndGet();
+		uploadLatencyMillis.record(latencyMillis);
+		AtomicLong counter = responseCodes.get(code);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = responseCodes.putIfAbsent(code, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	void setQueue(long depth, long bytes) {
+		this.queueDepth = depth;
+		this.queueBytes = bytes;
+	}
+
+	public Snapshot snapshot() {
+		TreeMap<Integer, Long> codes = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : responseCodes.entrySet()) {
+			codes.put(entry.getKey(), entry.getValue().get());
+		}
+		return new Snapshot(this, codes);
+	}
+
+	/**
+	 * @param listener called on a background thread every period, null to stop
+	 */
+	synchronized void setListener(final Listener listener, long periodMillis) {
+		if (listenerTask != null) {
+			listenerTask.cancel(false);
+			listenerTask = null;
+		}
+		if (listener == null) {
+			return;
+		}
+		if (periodMillis < 1) {
+			throw new IllegalArgumentException("Period must be positive");
+		}
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Sentry-Stats");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		listenerTask = timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onStats(snapshot());
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Stats listener failed", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A point-in-time copy of the stats.
+	 */
+	public static final class Snapshot {
+		private final long captured;
+		private final long dropped;
+		private final long aggregated;
+		private final long persisted;
+		private final long evicted;
+		private final long sent;
+		private final long transportErrors;
+		private final long queueDepth;
+		private final long queueBytes;
+		private final SentryHistogram.Snapshot uploadLatencyMillis;
+		private final SentryHistogram.Snapshot serializationMicros;
+		private final SentryHistogram.Snapshot storageWriteMicros;
+		private final Map<Integer, Long> responseCodes;
+
+		private Snapshot(SentryStats stats, Map<Integer, Long> responseCodes) {
+			this.captured = stats.captured.get();
+			this.dropped = stats.dropped.get();
+			this.aggregated = stats.aggregated.get();
+			this.persisted = stats.persisted.get();
+			this.evicted = stats.evicted.get();
+			this.sent = stats.sent.get();
+			this.transportErrors = stats.transportErrors.get();
+			this.queueDepth = stats.queueDepth;
+			this.queueBytes = stats.queueBytes;
+			this.uploadLatencyMillis = stats.uploadLatencyMillis.snapshot();
+			this.serializationMicros = stats.serializationMicros.snapshot();
+			this.storageWriteMicros = stats.storageWriteMicros.snapshot();
+			this.responseCodes = Collections.unmodifiableMap(responseCodes);
+		}
+
+		/**
+		 * @return events handed to the client, including ones dropped later
+		 */
+		public long getCaptured() {
+			return captured;
+		}
+
+		/**
+		 * @return events dropped by sampling, rate limiting, a full ingest queue or the capture listener
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/**
+		 * @return repeats folded into an earlier event instead of sent on their own
+		 */
+		public long getAggregated() {
+			return aggregated;
+		}
+
+		/**
+		 * @return events written to the unsent queue on disk
+		 */
+		public long getPersisted() {
+			return persisted;
+		}
+
+		/**
+		 * @return stored events dropped to stay within the queue limits
+		 */
+		public long getEvicted() {
+			return evicted;
+		}
+
+		/**
+		 * @return events that got a response from the server
+		 */
+		public long getSent() {
+			return sent;
+		}
+
+		/**
+		 * @return sends that failed without a response
+		 */
+		public long getTransportErrors() {
+			return transportErrors;
+		}
+
+		/**
+		 * @return events in the unsent queue
+		 */
+		public long getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * @return request data bytes in the unsent queue
+		 */
+		public long getQueueBytes() {
+			return queueBytes;
+		}
+
+		public SentryHistogram.Snapshot getUploadLatencyMillis() {
+			return uploadLatencyMillis;
+		}
+
+		public SentryHistogram.Snapshot getSerializationMicros() {
+			return serializationMicros;
+		}
+
+		public SentryHistogram.Snapshot getStorageWriteMicros() {
+			return storageWriteMicros;
+		}
+
+		/**
+		 * @return responses received per HTTP status code
+		 */
+		public Map<Integer, Long> getResponseCodes() {
+			return responseCodes;
+		}
+
+		@Override
+		public String toString() {
+			return "captured=" + captured + " dropped=" + dropped + " aggregated=" + aggregated + " persisted=" + persisted
+				+ " evicted=" + evicted + " sent=" + sent + " transportErrors=" + transportErrors + " queue=" + queueDepth + "/" + queueBytes + "B"
+				+ " codes=" + responseCodes + " upload[" + uploadLatencyMillis + "] serialize[" + serializationMicros
+				+ "] storage[" + storageWriteMicros + "]";
+		}
+	}
+}
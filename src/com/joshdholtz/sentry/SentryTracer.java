@@ -0,0 +1,285 @@
+package com.joshdholtz.sentry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder;
+import com.joshdholtz.sentry.Sentry.SentryEventBuilder.SentryEventLevel;
+
+/**
+ * Times transactions and the spans nested in them.
+ *
+ * Spans live in a preallocated ring of primitive arrays and are named by
+ * their sequence number, so starting and finishing one allocates nothing
+ * and takes no lock. A slot carries the sequence of the span in it, as in
+ * the breadcrumb ring, so a summary never mistakes a reused slot for the
+ * span it is looking for.
+ *
+ * Whether a transaction is recorded is decided once when it starts; spans
+ * of a transaction that was sampled out get handle 0 and cost a branch.
+ * A finished transaction is summarized into JSON and batched, and a batch
+ * is sent as a single event.
+ */
+final class SentryTracer {
+
+	static final long NOT_RECORDED = 0;
+
+	private static final long UNSET = -1;
+	private static final int MAX_SUMMARIZED_SPANS = 100;
+
+	/**
+	 * Takes an event carrying a batch of transactions.
+	 */
+	interface Emitter {
+		void emit(SentryEventBuilder builder);
+	}
+
+	private final SentryFlushScheduler scheduler;
+	private final Emitter emitter;
+	private final Random random = new Random();
+
+	private final int mask;
+	private final AtomicLong next = new AtomicLong(1);
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray ends;
+	private final long[] starts;
+	private final long[] parents;
+	private final long[] transactions;
+	private final String[] names;
+
+	private volatile double sampleRate = 1.0;
+	private volatile int maxTransactionsPerEvent = 20;
+	private volatile long lingerMillis = 30 * 1000;
+
+	private final List<JSONObject> batch = new ArrayList<JSONObject>();
+	private boolean emitScheduled;
+
+	/**
+	 * @param capacity spans kept, rounded up to a power of two
+	 */
+	SentryTracer(int capacity, SentryFlushScheduler scheduler, Emitter emitter) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.ends = new AtomicLongArray(size);
+		this.starts = new long[size];
+		this.parents = new long[size];
+		this.transactions = new long[size];
+		this.names = new String[size];
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, UNSET);
+		}
+		this.scheduler = scheduler;
+		this.emitter = emitter;
+	}
+
+	/**
+	 * @param rate fraction of transactions recorded, from 0 to 1
+	 */
+	void setSampleRate(double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+		}
+		this.sampleRate = rate;
+	}
+
+	/**
+	 * @param maxTransactions transactions sent in one event
+	 * @param lingerMillis longest time a finished transaction waits for its batch to fill
+	 */
+	void setBatching(int maxTransactions, long lingerMillis) {
+		if (maxTransactions < 1 || lingerMillis < 0) {
+			throw new IllegalArgumentException("Invalid transaction batching");
+		}
+		this.maxTransactionsPerEvent = maxTransactions;
+		this.lingerMillis = lingerMillis;
+	}
+
+	/**
+	 * @return the transaction's handle, or NOT_RECORDED if it was sampled out
+	 */
+	long startTransaction(String name) {
+		double rate = sampleRate;
+		if (rate < 1 && (rate == 0 || random.nextDouble() >= rate)) {
+			return NOT_RECORDED;
+		}
+		return record(name, NOT_RECORDED, NOT_RECORDED);
+	}
+
+	/**
+	 * @param parent a transaction or span handle
+	 * @return the span's handle, or NOT_RECORDED if the parent is not recorded
+	 */
+	long startSpan(long parent, String op) {
+		if (parent == NOT_RECORDED) {
+			return NOT_RECORDED;
+		}
+		int slot = (int) parent & mask;
+		if (sequences.get(slot) != parent) {
+			// the parent was overwritten, the transaction can't be summarized anyway
+			return NOT_RECORDED;
+		}
+		long transaction = transactions[slot];
+		if (sequences.get(slot) != parent) {
+			return NOT_RECORDED;
+		}
+		return record(op, parent, transaction == NOT_RECORDED ? parent : transaction);
+	}
+
+	/**
+	 * Finishes a span. Finishing a transaction summarizes it and its spans,
+	 * on the calling thread, and queues the summary for sending.
+	 */
+	void finish(long span) {
+		if (span == NOT_RECORDED) {
+			return;
+		}
+		int slot = (int) span & mask;
+		long end = System.nanoTime();
+		if (sequences.get(slot) != span) {
+			return;
+		}
+		ends.set(slot, end);
+		if (parents[slot] == NOT_RECORDED && sequences.get(slot) == span) {
+			JSONObject summary = summarize(span);
+			if (summary != null) {
+				add(summary);
+			}
+		}
+	}
+
+	private long record(String name, long parent, long transaction) {
+		long sequence = next.getAndIncrement();
+		int slot = (int) sequence & mask;
+		sequences.set(slot, UNSET);
+		starts[slot] = System.nanoTime();
+		parents[slot] = parent;
+		transactions[slot] = transaction;
+		names[slot] = name;
+		ends.set(slot, UNSET);
+		// publishes the plain writes above to readers that check the sequence first
+		sequences.set(slot, sequence);
+		return sequence;
+	}
+
+	/**
+	 * @return the transaction and its spans as JSON, or null if its slot was reused meanwhile
+	 */
+	private JSONObject summarize(long transaction) {
+		int root = (int) transaction & mask;
+		if (sequences.get(root) != transaction) {
+			return null;
+		}
+		long start = starts[root];
+		long end = ends.get(root);
+		String name = names[root];
+		if (sequences.get(root) != transaction) {
+			return null;
+		}
+
+		JSONObject summary = new JSONObject();
+		try {
+			JSONArray spans = new JSONArray();
+			int dropped = 0;
+			long last = next.get();
+			// with more spans started since the transaction than the ring holds, some of its own may be gone
+			boolean incomplete = last - transaction > mask + 1;
+			for (long sequence = Math.max(transaction + 1, last - (mask + 1)); sequence < last; sequence++) {
+				int slot = (int) sequence & mask;
+				if (sequences.get(slot) != sequence || transactions[slot] != transaction) {
+					continue;
+				}
+				long spanStart = starts[slot];
+				long spanEnd = ends.get(slot);
+				long parent = parents[slot];
+				String op = names[slot];
+				if (sequences.get(slot) != sequence) {
+					continue;
+				}
+				if (spans.length() == MAX_SUMMARIZED_SPANS) {
+					dropped++;
+					continue;
+				}
+
+				JSONObject span = new JSONObject();
+				span.put("op", op);
+				span.put("id", sequence);
+				span.put("parent", parent);
+				span.put("offset_ms", (spanStart - start) / 1000000.0);
+				if (spanEnd != UNSET) {
+					span.put("duration_ms", (spanEnd - spanStart) / 1000000.0);
+				}
+				spans.put(span);
+			}
+
+			long durationNanos = end - start;
+			summary.put("name", name);
+			summary.put("id", transaction);
+			summary.put("start_timestamp", (System.currentTimeMillis() - durationNanos / 1000000) / 1000.0);
+			summary.put("duration_ms", durationNanos / 1000000.0);
+			summary.put("spans", spans);
+			if (dropped > 0) {
+				summary.put("spans_dropped", dropped);
+			}
+			if (incomplete) {
+				summary.put("spans_incomplete", true);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return summary;
+	}
+
+	private void add(JSONObject summary) {
+		boolean full;
+		synchronized (batch) {
+			batch.add(summary);
+			full = batch.size() >= maxTransactionsPerEvent;
+			if (!full && emitScheduled) {
+				return;
+			}
+			emitScheduled = true;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				emitBatch();
+			}
+		}, full ? 0 : lingerMillis);
+	}
+
+	/**
+	 * Sends whatever transactions are waiting, on the flush thread.
+	 */
+	private void emitBatch() {
+		JSONArray summaries = new JSONArray();
+		synchronized (batch) {
+			emitScheduled = false;
+			if (batch.isEmpty()) {
+				return;
+			}
+			for (JSONObject summary : batch) {
+				summaries.put(summary);
+			}
+			batch.clear();
+		}
+
+		SentryEventBuilder builder = new SentryEventBuilder()
+			.setMessage("Performance: " + summaries.length() + " transactions")
+			.setLevel(SentryEventLevel.INFO)
+			.setLogger("sentry.performance");
+		try {
+			builder.getExtra().put("transactions", summaries);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		emitter.emit(builder);
+	}
+}
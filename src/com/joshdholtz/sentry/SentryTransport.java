@@ -0,0 +1,41 @@
+package com.joshdholtz.sentry;
+
+import java.io.IOException;
+
+import com.joshdholtz.sentry.Sentry.SentryEventRequest;
+
+/**
+ * Delivers a single event to the store endpoint, or wherever the
+ * implementation sends it. Called from the dispatcher's sender threads,
+ * up to {@link Sentry#setConcurrentUploads} of them at once.
+ */
+public interface SentryTransport {
+
+	/**
+	 * The parts of a store response the client acts on.
+	 */
+	public static final class Response {
+		final int code;
+		/** the Retry-After header, or null */
+		final String retryAfter;
+
+		public Response(int code, String retryAfter) {
+			this.code = code;
+			this.retryAfter = retryAfter;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getRetryAfter() {
+			return retryAfter;
+		}
+	}
+
+	/**
+	 * @throws IOException if the event could not be delivered
+	 */
+	Response send(SentryEventRequest request) throws IOException;
+
+}
@@ -0,0 +1,186 @@
+package com.joshdholtz.sentry;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Watches a thread, normally the main thread, for stalls.
+ *
+ * Every interval the watchdog posts a tiny task to the thread and checks
+ * that it ran. When it hasn't for the jank threshold, the thread's stack is
+ * taken, since that is what it is stuck on; the stall is reported once the
+ * thread catches up, with its full duration. A stall that reaches the ANR
+ * threshold is reported right away, as the system may kill the app soon.
+ *
+ * Time is measured with uptimeMillis so the device sleeping is not taken
+ * for a stall, and nothing is reported while a debugger is attached.
+ */
+final class SentryWatchdog {
+
+	private static final String TAG = "Sentry";
+
+	/**
+	 * Where the watchdog's pings run.
+	 */
+	interface PingSource {
+		/**
+		 * Runs the task on the watched thread.
+		 */
+		void post(Runnable task);
+
+		Thread getThread();
+	}
+
+	/**
+	 * Receives the stalls found.
+	 */
+	interface Reporter {
+		/**
+		 * @param stall carries the stack of the watched thread during the stall
+		 * @param anr true if the stall reached the ANR threshold
+		 */
+		void onStall(StallException stall, long stalledMillis, boolean anr);
+	}
+
+	/**
+	 * A stall of the watched thread, with the thread's stack as its own.
+	 */
+	static final class StallException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		StallException(String threadName, long stalledMillis, StackTraceElement[] stack) {
+			super(threadName + " thread stalled for " + stalledMillis + " ms");
+			setStackTrace(stack);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			// the watchdog's own stack is of no interest
+			return this;
+		}
+	}
+
+	/**
+	 * Pings the main looper.
+	 */
+	static final class MainLooper implements PingSource {
+		private final Handler handler = new Handler(Looper.getMainLooper());
+
+		@Override
+		public void post(Runnable task) {
+			handler.post(task);
+		}
+
+		@Override
+		public Thread getThread() {
+			return Looper.getMainLooper().getThread();
+		}
+	}
+
+	private final PingSource source;
+	private final Reporter reporter;
+	private final long intervalMillis;
+	private final long jankMillis;
+	private final long anrMillis;
+
+	private volatile long ponged;
+	private volatile long pongedAt;
+	private volatile boolean running;
+	private Thread thread;
+
+	// posted over and over, so pinging allocates nothing
+	private final Runnable pong = new Runnable() {
+		@Override
+		public void run() {
+			pongedAt = SystemClock.uptimeMillis();
+			ponged++;
+		}
+	};
+
+	/**
+	 * @param intervalMillis time between two pings, and the resolution of the stall durations
+	 * @param jankMillis stalls at least this long are reported
+	 * @param anrMillis stalls at least this long are reported as ANRs
+	 */
+	SentryWatchdog(PingSource source, Reporter reporter, long intervalMillis, long jankMillis, long anrMillis) {
+		if (intervalMillis < 1 || jankMillis < intervalMillis || anrMillis < jankMillis) {
+			throw new IllegalArgumentException("Invalid watchdog thresholds");
+		}
+		this.source = source;
+		this.reporter = reporter;
+		this.intervalMillis = intervalMillis;
+		this.jankMillis = jankMillis;
+		this.anrMillis = anrMillis;
+	}
+
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "Sentry-Watchdog");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	private void loop() {
+		try {
+			while (running) {
+				// only the watched thread writes ponged, so this is the next value it will have
+				long ping = ponged + 1;
+				long postedAt = SystemClock.uptimeMillis();
+				source.post(pong);
+
+				StackTraceElement[] stack = null;
+				boolean anr = false;
+				Thread.sleep(intervalMillis);
+				while (running && ponged < ping) {
+					long stalled = SystemClock.uptimeMillis() - postedAt;
+					if (stack == null && stalled >= jankMillis) {
+						stack = source.getThread().getStackTrace();
+					}
+					if (!anr && stalled >= anrMillis) {
+						anr = true;
+						report(source.getThread().getStackTrace(), stalled, true);
+					}
+					Thread.sleep(intervalMillis);
+				}
+
+				if (stack != null && !anr && running) {
+					report(stack, pongedAt - postedAt, false);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void report(StackTraceElement[] stack, long stalledMillis, boolean anr) {
+		if (Debug.isDebuggerConnected()) {
+			return;
+		}
+		try {
+			reporter.onStall(new StallException(source.getThread().getName(), stalledMillis, stack), stalledMillis, anr);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Unable to report stall", e);
+		}
+	}
+}